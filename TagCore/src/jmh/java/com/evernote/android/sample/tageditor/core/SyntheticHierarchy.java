@@ -0,0 +1,78 @@
+package com.evernote.android.sample.tageditor.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * A generated tag hierarchy for the benchmarks
+ * <p> Every tag gets a random Guid (shaped like the ones the Evernote service hands out)
+ * and a random name, and its parent is picked at random among the tags generated before it.
+ * That gives a few wide levels near the top and branches around ln(size) levels deep
+ * (about 14 for a million tags), which keeps the paths close to the ones of a real account.
+ * The same size and seed always give the same hierarchy.</p>
+ *
+ */
+final class SyntheticHierarchy {
+
+	// Share of the tags that are on the top level
+	private static final double TOP_LEVEL_RATIO = 0.05;
+	private static final String NAME_CHARS = "abcdefghijklmnopqrstuvwxyz \u00e1\u00e9\u00f10123456789";
+
+	final String[] guids;
+	final String[] names;
+	final String[] parentGuids;
+	final int[] updateSequenceNums;
+
+	SyntheticHierarchy(int size, long seed) {
+		Random random = new Random(seed);
+		guids = new String[size];
+		names = new String[size];
+		parentGuids = new String[size];
+		updateSequenceNums = new int[size];
+		for (int i = 0; i < size; i++) {
+			guids[i] = new UUID(random.nextLong(), random.nextLong()).toString();
+			names[i] = randomName(random);
+			if (i > 0 && random.nextDouble() >= TOP_LEVEL_RATIO) {
+				parentGuids[i] = guids[random.nextInt(i)];
+			}
+			updateSequenceNums[i] = i + 1;
+		}
+	}
+
+	int size() {
+		return guids.length;
+	}
+
+	/**
+	 * Build new nodes for every tag, like the app does when it loads the index from the database.
+	 *
+	 */
+	List<TagTree.Node> newNodes() {
+		List<TagTree.Node> nodes = new ArrayList<TagTree.Node>(guids.length);
+		for (int i = 0; i < guids.length; i++) {
+			nodes.add(new TagTree.Node(guids[i], names[i], parentGuids[i], updateSequenceNums[i]));
+		}
+		return nodes;
+	}
+
+	/**
+	 * Build an index with every tag.
+	 *
+	 */
+	TagTree newTree() {
+		TagTree tree = new TagTree();
+		tree.build(newNodes());
+		return tree;
+	}
+
+	private static String randomName(Random random) {
+		int length = 4 + random.nextInt(12);
+		StringBuilder name = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			name.append(NAME_CHARS.charAt(random.nextInt(NAME_CHARS.length())));
+		}
+		return name.toString();
+	}
+}
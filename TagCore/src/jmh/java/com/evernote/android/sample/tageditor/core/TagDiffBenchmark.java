@@ -0,0 +1,144 @@
+package com.evernote.android.sample.tageditor.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the sync diff ({@link TagDiff})
+ * <p> The service sends back every stored tag, where 1% of them changed, 1% are new,
+ * 1% of the stored ones are expunged and 1% have local changes on the outbox, so every
+ * branch of the diff gets its share of the work.</p>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class TagDiffBenchmark {
+
+	private static final long SEED = 42;
+	// One in this many tags falls on each kind of change
+	private static final int CHANGE_RATIO = 100;
+
+	/**
+	 * The tags the benchmarks work with, only the Guid and updateSequenceNum matter to the diff.
+	 *
+	 */
+	static final class RemoteTag {
+		final String guid;
+		final int updateSequenceNum;
+
+		RemoteTag(String guid, int updateSequenceNum) {
+			this.guid = guid;
+			this.updateSequenceNum = updateSequenceNum;
+		}
+	}
+
+	private static final TagDiff.Accessor<RemoteTag> ACCESSOR = new TagDiff.Accessor<RemoteTag>() {
+		@Override
+		public String getGuid(RemoteTag tag) {
+			return tag.guid;
+		}
+
+		@Override
+		public int getUpdateSequenceNum(RemoteTag tag) {
+			return tag.updateSequenceNum;
+		}
+	};
+
+	/**
+	 * Counts the writes, so the work can't be optimized away.
+	 *
+	 */
+	public static final class Counter implements TagDiff.Handler<RemoteTag> {
+		int inserted;
+		int updated;
+		int deleted;
+
+		@Override
+		public void insert(RemoteTag tag) {
+			inserted++;
+		}
+
+		@Override
+		public void update(RemoteTag tag) {
+			updated++;
+		}
+
+		@Override
+		public void delete(String guid) {
+			deleted++;
+		}
+	}
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int size;
+
+	private TagTree tree;
+	private List<RemoteTag> remoteTags;
+	private List<String> expungedGuids;
+	private Set<String> pendingGuids;
+
+	@Setup
+	public void setUp() {
+		SyntheticHierarchy hierarchy = new SyntheticHierarchy(size, SEED);
+		tree = hierarchy.newTree();
+		Random random = new Random(SEED);
+		remoteTags = new ArrayList<RemoteTag>(size + size / CHANGE_RATIO);
+		expungedGuids = new ArrayList<String>();
+		pendingGuids = new HashSet<String>();
+		for (int i = 0; i < size; i++) {
+			String guid = hierarchy.guids[i];
+			int updateSequenceNum = hierarchy.updateSequenceNums[i];
+			switch (random.nextInt(CHANGE_RATIO)) {
+			case 0:
+				remoteTags.add(new RemoteTag(guid, updateSequenceNum + size));
+				break;
+			case 1:
+				expungedGuids.add(guid);
+				break;
+			case 2:
+				pendingGuids.add(guid);
+				remoteTags.add(new RemoteTag(guid, updateSequenceNum + size));
+				break;
+			default:
+				remoteTags.add(new RemoteTag(guid, updateSequenceNum));
+				break;
+			}
+			if (random.nextInt(CHANGE_RATIO) == 0)
+				remoteTags.add(new RemoteTag(hierarchy.guids[i] + "-new", 2 * size + i));
+		}
+		// the service doesn't send the tags in the order we stored them
+		Collections.shuffle(remoteTags, random);
+	}
+
+	/**
+	 * Compare the tags as a chunk of changes, against the index.
+	 *
+	 */
+	@Benchmark
+	public Counter diffChanges() {
+		Counter counter = new Counter();
+		TagDiff.diffChanges(tree, remoteTags, expungedGuids, pendingGuids, ACCESSOR, counter);
+		return counter;
+	}
+}
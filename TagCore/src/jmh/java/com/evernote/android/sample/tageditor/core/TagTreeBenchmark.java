@@ -0,0 +1,109 @@
+package com.evernote.android.sample.tageditor.core;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the reads and the build of the {@link TagTree} index
+ * <p> The lookups go through a fixed sequence of random tags (and the top level), so every
+ * run asks for the same mix of big and small levels.</p>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class TagTreeBenchmark {
+
+	private static final long SEED = 42;
+	// Number of tags the lookups cycle through
+	private static final int LOOKUPS = 1024;
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int size;
+
+	private SyntheticHierarchy hierarchy;
+	private TagTree tree;
+	private String[] lookupGuids;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		hierarchy = new SyntheticHierarchy(size, SEED);
+		tree = hierarchy.newTree();
+		Random random = new Random(SEED);
+		lookupGuids = new String[LOOKUPS];
+		for (int i = 0; i < LOOKUPS; i++) {
+			// one in eight lookups is for the top level, the biggest list
+			lookupGuids[i] = (i % 8 == 0) ? null : hierarchy.guids[random.nextInt(size)];
+		}
+	}
+
+	private String nextGuid() {
+		String guid = lookupGuids[next];
+		next = (next + 1) % LOOKUPS;
+		return guid;
+	}
+
+	/**
+	 * Load the index from scratch, the way the app does on start.
+	 *
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public TagTree build() {
+		TagTree built = new TagTree();
+		built.build(hierarchy.newNodes());
+		return built;
+	}
+
+	@Benchmark
+	public List<TagTree.Node> getChildren() {
+		return tree.getChildren(nextGuid());
+	}
+
+	@Benchmark
+	public int getChildCount() {
+		return tree.getChildCount(nextGuid());
+	}
+
+	@Benchmark
+	public List<TagTree.Node> getAncestors() {
+		return tree.getAncestors(nextGuid());
+	}
+
+	@Benchmark
+	public List<TagTree.Node> getDescendants() {
+		return tree.getDescendants(nextGuid());
+	}
+
+	/**
+	 * The list of possible parents for a tag, which leaves out its subtree.
+	 *
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public List<TagTree.Node> getAllSortedExcluding() {
+		return tree.getAllSortedExcluding(nextGuid());
+	}
+
+	@Benchmark
+	public boolean isDescendant() {
+		return tree.isDescendant(nextGuid(), nextGuid());
+	}
+}
@@ -0,0 +1,76 @@
+package com.evernote.android.sample.tageditor.core;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Works out which tags a sync has to write
+ * <p> The tags received from the Evernote service are compared with the stored ones by
+ * Guid and updateSequenceNum: a tag we don't have is inserted, a tag whose
+ * updateSequenceNum changed is updated, and a stored tag the service expunged
+ * is deleted. Tags with local changes waiting to be sent (the pending Guids) are left
+ * alone, the local version wins until the outbox is drained.</p>
+ * <p> The tags themselves are read through a {@link Accessor} and the result is reported
+ * to a {@link Handler} in the order the tags arrived, so the same logic works with the
+ * Evernote Tag type on the app and with plain objects on the benchmarks.</p>
+ *
+ */
+public final class TagDiff {
+
+	/**
+	 * Reads the Guid and updateSequenceNum of a tag.
+	 *
+	 */
+	public interface Accessor<T> {
+		String getGuid(T tag);
+		int getUpdateSequenceNum(T tag);
+	}
+
+	/**
+	 * Receives the writes needed to bring the stored tags up to date.
+	 *
+	 */
+	public interface Handler<T> {
+		void insert(T tag);
+		void update(T tag);
+		void delete(String guid);
+	}
+
+	private TagDiff() {
+	}
+
+	/**
+	 * Compare a set of changes (or a chunk of a full sync) from the service with the stored tags.
+	 * @param	tree	The index of the stored tags.
+	 * @param	tags	The new or modified tags (may be null).
+	 * @param	expungedGuids	The Guids of the tags expunged on the service (may be null).
+	 * @param	pendingGuids	The Guids of the tags with operations waiting on the outbox.
+	 *
+	 */
+	public static <T> void diffChanges(TagTree tree, Iterable<T> tags, Iterable<String> expungedGuids,
+			Set<String> pendingGuids, Accessor<T> accessor, Handler<T> handler) {
+		if (tags != null) {
+			// a tag can show up twice on the same chunk, only the first one is an insert
+			Set<String> inserted = new HashSet<String>();
+			for (T tag : tags) {
+				String guid = accessor.getGuid(tag);
+				if (pendingGuids.contains(guid))
+					continue;
+				// the index tells us if this is a tag we haven't seen before,
+				// or if we already have this version of it
+				TagTree.Node stored = tree.get(guid);
+				if (stored == null && inserted.add(guid)) {
+					handler.insert(tag);
+				} else if (stored == null || stored.updateSequenceNum != accessor.getUpdateSequenceNum(tag)) {
+					handler.update(tag);
+				}
+			}
+		}
+		if (expungedGuids != null) {
+			for (String guid : expungedGuids) {
+				if (tree.get(guid) != null && !pendingGuids.contains(guid))
+					handler.delete(guid);
+			}
+		}
+	}
+}
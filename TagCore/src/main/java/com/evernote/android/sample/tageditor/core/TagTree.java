@@ -0,0 +1,429 @@
+package com.evernote.android.sample.tageditor.core;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory index of the Tag hierarchy
+ * <p> It keeps every tag by Guid, the children of every parent sorted by name and
+ * the depth and path of every tag, so that hierarchy reads don't need to go to SQLite.
+ * The path of a tag is the list of Guids from its top level ancestor down to the tag
+ * ("/top/child/tag/"), so a tag is a descendant of another one when its path starts with
+ * the path of the other. Tags whose position changed are kept aside until they are 
+ * collected with {@link #drainChanged()}, so their stored path can be updated, and the
+ * levels (lists of children) whose contents changed are kept until {@link #drainTouchedLevels()}.
+ * It's built once from the database and then kept up to date by the app's TagsDb
+ * inside each write transaction, which reloads it if the transaction fails.</p>
+ * <p> It has no Android dependencies, so it can be used (and benchmarked) on a plain JVM.</p>
+ * <p> All the methods are synchronized since the index is shared by the UI and
+ * the sync service.</p>
+ *
+ */
+public class TagTree {
+
+	// Separates the Guids on a path
+	public static final String PATH_SEPARATOR = "/";
+
+	/**
+	 * A tag on the hierarchy. Everything but the depth and path is immutable, an update
+	 * replaces the node.
+	 *
+	 */
+	public static final class Node {
+		public final String guid;
+		public final String name;
+		public final String parentGuid;
+		public final int updateSequenceNum;
+		public volatile int depth;
+		public volatile String path;
+
+		public Node(String guid, String name, String parentGuid, int updateSequenceNum) {
+			this.guid = guid;
+			this.name = name;
+			this.parentGuid = parentGuid;
+			this.updateSequenceNum = updateSequenceNum;
+		}
+	}
+
+	// All the tags by Guid
+	private final Map<String, Node> nodes = new HashMap<String, Node>();
+	// The children of every parent, sorted by name. Top level tags are stored under the null key
+	private final Map<String, List<Node>> children = new HashMap<String, List<Node>>();
+	// Every tag sorted by name, built lazily and dropped on every change
+	private List<Node> allSorted;
+	private boolean built;
+	// Tags whose depth or path changed since the last call to drainChanged()
+	private final Map<String, Node> changed = new LinkedHashMap<String, Node>();
+	// Guids of the parents whose list of children changed since the last call to 
+	// drainTouchedLevels(), null stands for the top level
+	private final Set<String> touchedLevels = new HashSet<String>();
+
+	// Same order as the sort keys used by the queries, using the Guid to break ties
+	// so that every node has a unique position on its parent's list
+	private final Comparator<Node> order = new Comparator<Node>() {
+		private final Collator collator = Collator.getInstance();
+
+		@Override
+		public int compare(Node lhs, Node rhs) {
+			int result = collator.compare(lhs.name, rhs.name);
+			return (result != 0) ? result : lhs.guid.compareTo(rhs.guid);
+		}
+	};
+
+	/**
+	 * Replace the contents of the index with a complete list of tags.
+	 * @param	all	A {@link List} of {@link Node} objects with every stored tag, with their
+	 * stored depth and path (if any). The ones that turn out to be wrong are reported as changed.
+	 *
+	 */
+	public synchronized void build(List<Node> all) {
+		nodes.clear();
+		children.clear();
+		changed.clear();
+		touchedLevels.clear();
+		allSorted = null;
+		for (Node node : all) {
+			nodes.put(node.guid, node);
+			childList(node.parentGuid).add(node);
+		}
+		// we sort every list just once, instead of inserting each node on its place
+		for (List<Node> list : children.values()) {
+			Collections.sort(list, order);
+		}
+		for (Node node : all) {
+			if (!nodes.containsKey(node.parentGuid))
+				updatePosition(node, null);
+		}
+		built = true;
+	}
+
+	/**
+	 * Has the index been built
+	 *
+	 */
+	public synchronized boolean isBuilt() {
+		return built;
+	}
+
+	/**
+	 * Empty the index. {@link #isBuilt()} returns false until it's built again.
+	 *
+	 */
+	public synchronized void clear() {
+		nodes.clear();
+		children.clear();
+		changed.clear();
+		touchedLevels.clear();
+		allSorted = null;
+		built = false;
+	}
+
+	/**
+	 * Insert a tag on the index or replace the existing one with the same Guid.
+	 *
+	 */
+	public synchronized void put(String guid, String name, String parentGuid, int updateSequenceNum) {
+		Node previous = nodes.get(guid);
+		if (previous != null) {
+			detach(previous);
+			touchLevel(previous.parentGuid);
+		}
+		touchLevel(parentGuid);
+		Node node = new Node(guid, name, parentGuid, updateSequenceNum);
+		if (previous != null) {
+			// so we only report the position as changed if it really did
+			node.depth = previous.depth;
+			node.path = previous.path;
+		}
+		nodes.put(guid, node);
+		List<Node> siblings = childList(parentGuid);
+		int position = Collections.binarySearch(siblings, node, order);
+		siblings.add(-(position + 1), node);
+		updatePosition(node, (parentGuid != null) ? nodes.get(parentGuid) : null);
+		allSorted = null;
+	}
+
+	/**
+	 * Remove a tag from the index. Its children keep pointing at it, just like the rows
+	 * on the database do, but they become top level tags for the depth and path.
+	 *
+	 */
+	public synchronized void remove(String guid) {
+		Node node = nodes.remove(guid);
+		if (node != null) {
+			detach(node);
+			touchLevel(node.parentGuid);
+			changed.remove(guid);
+			List<Node> orphans = children.get(guid);
+			if (orphans != null) {
+				for (Node orphan : orphans) {
+					updatePosition(orphan, null);
+				}
+			}
+			allSorted = null;
+		}
+	}
+
+	/**
+	 * Obtain a tag by its Guid, or null if there's no such tag.
+	 *
+	 */
+	public synchronized Node get(String guid) {
+		return nodes.get(guid);
+	}
+
+	/**
+	 * Obtain the children of a tag sorted by name.
+	 * @param	parentGuid	the Guid of the parent tag, or null for the top level tags.
+	 *
+	 */
+	public synchronized List<Node> getChildren(String parentGuid) {
+		List<Node> list = children.get(parentGuid);
+		return (list != null) ? new ArrayList<Node>(list) : new ArrayList<Node>(0);
+	}
+
+	/**
+	 * Obtain the number of children of a tag.
+	 *
+	 */
+	public synchronized int getChildCount(String parentGuid) {
+		List<Node> list = children.get(parentGuid);
+		return (list != null) ? list.size() : 0;
+	}
+
+	/**
+	 * Obtain the ancestors of a tag, starting from the top level tag.
+	 * The tag itself isn't included.
+	 *
+	 */
+	public synchronized List<Node> getAncestors(String guid) {
+		List<Node> ancestors = new ArrayList<Node>();
+		Node node = nodes.get(guid);
+		if (node == null || node.path == null)
+			return ancestors;
+		// the path already lists the ancestors, from the top level one down
+		String[] guids = node.path.split(PATH_SEPARATOR);
+		for (int i = 0; i < guids.length - 1; i++) {
+			Node ancestor = nodes.get(guids[i]);
+			if (ancestor != null)
+				ancestors.add(ancestor);
+		}
+		return ancestors;
+	}
+
+	/**
+	 * Is a tag a descendant (child, grandchild and so on) of another one.
+	 *
+	 */
+	public synchronized boolean isDescendant(String guid, String ancestorGuid) {
+		Node node = nodes.get(guid);
+		Node ancestor = nodes.get(ancestorGuid);
+		if (node == null || ancestor == null || node == ancestor || node.path == null || ancestor.path == null)
+			return false;
+		return node.path.startsWith(ancestor.path);
+	}
+
+	/**
+	 * Obtain the tags whose depth or path changed since the last call, and forget them.
+	 *
+	 */
+	public synchronized List<Node> drainChanged() {
+		List<Node> list = new ArrayList<Node>(changed.values());
+		changed.clear();
+		return list;
+	}
+
+	/**
+	 * Record a tag's own level as touched, for changes the index doesn't see (like its pending flag).
+	 *
+	 */
+	public synchronized void touch(String guid) {
+		Node node = nodes.get(guid);
+		if (node != null)
+			touchLevel(node.parentGuid);
+	}
+
+	/**
+	 * Obtain the Guids of the parents whose list of children changed since the last call, 
+	 * and forget them. The top level is reported as null.
+	 *
+	 */
+	public synchronized List<String> drainTouchedLevels() {
+		List<String> list = new ArrayList<String>(touchedLevels);
+		touchedLevels.clear();
+		return list;
+	}
+
+	/**
+	 * Record that the children of a tag changed. The tag's own row shows a summary of 
+	 * its children, so the level of the tag itself changes too.
+	 *
+	 */
+	private void touchLevel(String parentGuid) {
+		touchedLevels.add(parentGuid);
+		if (parentGuid != null) {
+			Node parent = nodes.get(parentGuid);
+			touchedLevels.add((parent != null) ? parent.parentGuid : null);
+		}
+	}
+
+	/**
+	 * Obtain all the descendants of a tag, deepest first, so every tag comes before its parent.
+	 * The tag itself isn't included.
+	 *
+	 */
+	public synchronized List<Node> getDescendants(String guid) {
+		// we walk the subtree level by level and reverse it
+		List<Node> descendants = new ArrayList<Node>();
+		Set<String> visited = new HashSet<String>();
+		visited.add(guid);
+		LinkedList<String> pending = new LinkedList<String>();
+		pending.add(guid);
+		while (!pending.isEmpty()) {
+			List<Node> list = children.get(pending.removeFirst());
+			if (list == null)
+				continue;
+			for (Node child : list) {
+				// we skip what we've seen already if we find a cycle
+				if (visited.add(child.guid)) {
+					descendants.add(child);
+					pending.add(child.guid);
+				}
+			}
+		}
+		Collections.reverse(descendants);
+		return descendants;
+	}
+
+	/**
+	 * Obtain every tag on the index sorted by name.
+	 *
+	 */
+	public synchronized List<Node> getAllSorted() {
+		return new ArrayList<Node>(sorted());
+	}
+
+	/**
+	 * Obtain every tag on the index sorted by name, minus a tag and all its descendants.
+	 * <p>The subtree of a tag is every tag whose path starts with its path, so one prefix
+	 * check per tag leaves it out, no matter how deep it is.</p>
+	 * @param	guid	the Guid of the tag to leave out with its subtree, or null to keep every tag.
+	 *
+	 */
+	public synchronized List<Node> getAllSortedExcluding(String guid) {
+		List<Node> sorted = sorted();
+		Node excluded = (guid != null) ? nodes.get(guid) : null;
+		if (excluded == null)
+			return new ArrayList<Node>(sorted);
+		String subtreePath = excluded.path;
+		List<Node> list = new ArrayList<Node>(sorted.size());
+		for (Node node : sorted) {
+			if (node == excluded)
+				continue;
+			String path = node.path;
+			if (subtreePath != null && path != null && path.startsWith(subtreePath))
+				continue;
+			list.add(node);
+		}
+		return list;
+	}
+
+	/**
+	 * Obtain the first path that sorts after every path on a subtree.
+	 * <p>The subtree of "/.../guid/" is every path from it up to (not including)
+	 * "/.../guid0", since '0' is the character after the separator, so the subtree is a
+	 * single range on a sorted path index.</p>
+	 * @param	path	the path of the tag at the top of the subtree.
+	 *
+	 */
+	public static String getSubtreeEnd(String path) {
+		return path.substring(0, path.length() - 1) + (char) (PATH_SEPARATOR.charAt(0) + 1);
+	}
+
+	/**
+	 * Obtain the cached list of every tag sorted by name, building it if needed.
+	 *
+	 */
+	private List<Node> sorted() {
+		if (allSorted == null) {
+			allSorted = new ArrayList<Node>(nodes.values());
+			Collections.sort(allSorted, order);
+		}
+		return allSorted;
+	}
+
+	/**
+	 * Remove a node from its parent's list of children.
+	 *
+	 */
+	private void detach(Node node) {
+		List<Node> siblings = children.get(node.parentGuid);
+		if (siblings != null) {
+			int position = Collections.binarySearch(siblings, node, order);
+			if (position >= 0)
+				siblings.remove(position);
+			if (siblings.isEmpty())
+				children.remove(node.parentGuid);
+		}
+	}
+
+	/**
+	 * Obtain (or create) the list of children of a parent.
+	 *
+	 */
+	private List<Node> childList(String parentGuid) {
+		List<Node> list = children.get(parentGuid);
+		if (list == null) {
+			list = new ArrayList<Node>();
+			children.put(parentGuid, list);
+		}
+		return list;
+	}
+
+	/**
+	 * Set the depth and path of a node under its parent and propagate them to all its descendants.
+	 * @param	parent	the parent node, or null for a top level tag (or one whose parent is gone).
+	 *
+	 */
+	private void updatePosition(Node root, Node parent) {
+		LinkedList<Node> pending = new LinkedList<Node>();
+		if (parent != null && parent.path != null)
+			setPosition(root, parent.depth + 1, parent.path);
+		else
+			setPosition(root, 0, PATH_SEPARATOR);
+		pending.add(root);
+		int visited = 0;
+		while (!pending.isEmpty() && visited++ <= nodes.size()) {
+			Node node = pending.removeFirst();
+			List<Node> list = children.get(node.guid);
+			if (list != null) {
+				for (Node child : list) {
+					setPosition(child, node.depth + 1, node.path);
+					pending.add(child);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Set the depth and path of a node, recording it as changed if they are different.
+	 *
+	 */
+	private void setPosition(Node node, int depth, String parentPath) {
+		String path = parentPath + node.guid + PATH_SEPARATOR;
+		if (node.depth != depth || !path.equals(node.path)) {
+			node.depth = depth;
+			node.path = path;
+			changed.put(node.guid, node);
+		}
+	}
+}
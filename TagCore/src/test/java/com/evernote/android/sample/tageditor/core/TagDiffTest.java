@@ -0,0 +1,119 @@
+package com.evernote.android.sample.tageditor.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * What {@link TagDiff} decides to write for each kind of change
+ *
+ */
+public class TagDiffTest {
+
+	private static final Set<String> NONE_PENDING = Collections.emptySet();
+
+	/**
+	 * A tag as the service sends it, only the Guid and updateSequenceNum matter to the diff.
+	 *
+	 */
+	static final class RemoteTag {
+		final String guid;
+		final int updateSequenceNum;
+
+		RemoteTag(String guid, int updateSequenceNum) {
+			this.guid = guid;
+			this.updateSequenceNum = updateSequenceNum;
+		}
+	}
+
+	private static final TagDiff.Accessor<RemoteTag> ACCESSOR = new TagDiff.Accessor<RemoteTag>() {
+		@Override
+		public String getGuid(RemoteTag tag) {
+			return tag.guid;
+		}
+
+		@Override
+		public int getUpdateSequenceNum(RemoteTag tag) {
+			return tag.updateSequenceNum;
+		}
+	};
+
+	/**
+	 * Records the writes, by Guid.
+	 *
+	 */
+	static final class Recorder implements TagDiff.Handler<RemoteTag> {
+		final List<String> inserted = new ArrayList<String>();
+		final List<String> updated = new ArrayList<String>();
+		final List<String> deleted = new ArrayList<String>();
+
+		@Override
+		public void insert(RemoteTag tag) {
+			inserted.add(tag.guid);
+		}
+
+		@Override
+		public void update(RemoteTag tag) {
+			updated.add(tag.guid);
+		}
+
+		@Override
+		public void delete(String guid) {
+			deleted.add(guid);
+		}
+	}
+
+	@Test
+	public void diffChangesUsesTheIndex() {
+		TagTree tree = new TagTree();
+		tree.build(Arrays.asList(new TagTree.Node("same", "Same", null, 1),
+				new TagTree.Node("changed", "Changed", null, 2), new TagTree.Node("expunged", "Expunged", null, 3)));
+		List<RemoteTag> tags = Arrays.asList(new RemoteTag("same", 1), new RemoteTag("changed", 5),
+				new RemoteTag("new", 6));
+		Recorder recorder = new Recorder();
+
+		TagDiff.diffChanges(tree, tags, Arrays.asList("expunged", "unknown"), NONE_PENDING, ACCESSOR, recorder);
+
+		assertEquals(Arrays.asList("new"), recorder.inserted);
+		assertEquals(Arrays.asList("changed"), recorder.updated);
+		// a tag we never stored has nothing to delete
+		assertEquals(Arrays.asList("expunged"), recorder.deleted);
+	}
+
+	@Test
+	public void diffChangesInsertsATagOnce() {
+		TagTree tree = new TagTree();
+		tree.build(new ArrayList<TagTree.Node>());
+		List<RemoteTag> tags = Arrays.asList(new RemoteTag("new", 1), new RemoteTag("new", 2));
+		Recorder recorder = new Recorder();
+
+		TagDiff.diffChanges(tree, tags, null, NONE_PENDING, ACCESSOR, recorder);
+
+		assertEquals(Arrays.asList("new"), recorder.inserted);
+		assertEquals(Arrays.asList("new"), recorder.updated);
+	}
+
+	@Test
+	public void diffChangesLeavesPendingTagsAlone() {
+		TagTree tree = new TagTree();
+		tree.build(Arrays.asList(new TagTree.Node("edited", "Edited", null, 1),
+				new TagTree.Node("deleted", "Deleted", null, 2)));
+		Set<String> pending = new HashSet<String>(Arrays.asList("edited", "deleted"));
+		Recorder recorder = new Recorder();
+
+		TagDiff.diffChanges(tree, Arrays.asList(new RemoteTag("edited", 3)), Arrays.asList("deleted"),
+				pending, ACCESSOR, recorder);
+
+		assertTrue(recorder.inserted.isEmpty());
+		assertTrue(recorder.updated.isEmpty());
+		assertTrue(recorder.deleted.isEmpty());
+	}
+}
@@ -0,0 +1,158 @@
+package com.evernote.android.sample.tageditor.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Paths and depths kept by {@link TagTree} as the hierarchy changes
+ *
+ */
+public class TagTreeTest {
+
+	private TagTree tree;
+
+	/**
+	 * top
+	 *  + child
+	 *     + grandchild
+	 * other
+	 *
+	 */
+	@Before
+	public void setUp() {
+		tree = new TagTree();
+		tree.build(Arrays.asList(new TagTree.Node("grandchild", "Grandchild", "child", 3),
+				new TagTree.Node("child", "Child", "top", 2), new TagTree.Node("top", "Top", null, 1),
+				new TagTree.Node("other", "Other", null, 4)));
+	}
+
+	@Test
+	public void buildWorksOutThePaths() {
+		assertPosition("top", 0, "/top/");
+		assertPosition("child", 1, "/top/child/");
+		assertPosition("grandchild", 2, "/top/child/grandchild/");
+		assertPosition("other", 0, "/other/");
+		// none of them had a stored path
+		assertEquals(guids("top", "child", "grandchild", "other"), guidsOf(tree.drainChanged()));
+	}
+
+	@Test
+	public void buildOnlyReportsWrongStoredPaths() {
+		TagTree.Node top = new TagTree.Node("top", "Top", null, 1);
+		top.path = "/top/";
+		TagTree.Node child = new TagTree.Node("child", "Child", "top", 2);
+		child.depth = 1;
+		child.path = "/old/child/";
+		tree.build(Arrays.asList(top, child));
+
+		assertEquals(guids("child"), guidsOf(tree.drainChanged()));
+		assertPosition("child", 1, "/top/child/");
+	}
+
+	@Test
+	public void movingATagMovesItsSubtree() {
+		tree.drainChanged();
+
+		tree.put("child", "Child", "other", 2);
+
+		assertPosition("child", 1, "/other/child/");
+		assertPosition("grandchild", 2, "/other/child/grandchild/");
+		assertEquals(guids("child", "grandchild"), guidsOf(tree.drainChanged()));
+		assertTrue(tree.isDescendant("grandchild", "other"));
+		assertFalse(tree.isDescendant("grandchild", "top"));
+	}
+
+	@Test
+	public void renamingATagKeepsItsPath() {
+		tree.drainChanged();
+
+		tree.put("child", "Renamed", "top", 5);
+
+		assertPosition("child", 1, "/top/child/");
+		assertTrue(tree.drainChanged().isEmpty());
+	}
+
+	@Test
+	public void aChildWrittenBeforeItsParentGetsItsPathLater() {
+		tree.put("orphan", "Orphan", "late", 5);
+		assertPosition("orphan", 0, "/orphan/");
+
+		tree.put("late", "Late", "top", 6);
+
+		assertPosition("late", 1, "/top/late/");
+		assertPosition("orphan", 2, "/top/late/orphan/");
+	}
+
+	@Test
+	public void removingATagMakesItsChildrenTopLevel() {
+		tree.drainChanged();
+
+		tree.remove("top");
+
+		assertPosition("child", 0, "/child/");
+		assertPosition("grandchild", 1, "/child/grandchild/");
+		assertEquals(guids("child", "grandchild"), guidsOf(tree.drainChanged()));
+	}
+
+	@Test
+	public void ancestorsComeFromThePath() {
+		List<TagTree.Node> ancestors = tree.getAncestors("grandchild");
+
+		assertEquals(2, ancestors.size());
+		assertEquals("top", ancestors.get(0).guid);
+		assertEquals("child", ancestors.get(1).guid);
+	}
+
+	@Test
+	public void subtreeIsARangeOfPaths() {
+		String start = tree.get("top").path;
+		String end = TagTree.getSubtreeEnd(start);
+
+		for (TagTree.Node node : tree.getAllSorted()) {
+			boolean inRange = node.path.compareTo(start) >= 0 && node.path.compareTo(end) < 0;
+			assertEquals(node.guid, node.guid.equals("top") || tree.isDescendant(node.guid, "top"), inRange);
+		}
+	}
+
+	@Test
+	public void excludingASubtree() {
+		assertEquals(guids("other"), guidsOf(tree.getAllSortedExcluding("top")));
+		assertEquals(4, tree.getAllSortedExcluding(null).size());
+	}
+
+	@Test
+	public void descendantsComeBeforeTheirParents() {
+		List<TagTree.Node> descendants = tree.getDescendants("top");
+
+		assertEquals(2, descendants.size());
+		assertEquals("grandchild", descendants.get(0).guid);
+		assertEquals("child", descendants.get(1).guid);
+	}
+
+	private void assertPosition(String guid, int depth, String path) {
+		TagTree.Node node = tree.get(guid);
+		assertEquals(guid, depth, node.depth);
+		assertEquals(guid, path, node.path);
+	}
+
+	private static Set<String> guids(String... guids) {
+		return new HashSet<String>(Arrays.asList(guids));
+	}
+
+	private static Set<String> guidsOf(List<TagTree.Node> nodes) {
+		Set<String> guids = new HashSet<String>();
+		for (TagTree.Node node : nodes) {
+			guids.add(node.guid);
+		}
+		return guids;
+	}
+}
@@ -3,6 +3,7 @@ package com.evernote.android.sample.tageditor.data;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.util.Log;
 
 /**
@@ -23,9 +24,41 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 	public static final String COLUMN_NAME = "name";
 	public static final String COLUMN_PARENT_GUID = "parentGuid";
 	public static final String COLUMN_UPDATE_SEQ_NUM = "updateSequenceNum";
+	// 1 while the row has local changes that haven't reached the Evernote service
+	public static final String COLUMN_PENDING = "pending";
+	// Guids from the top level ancestor down to the tag ("/top/child/tag/"), and the number of ancestors
+	public static final String COLUMN_PATH = "path";
+	public static final String COLUMN_DEPTH = "depth";
+	// Collation key of the name for the current locale (see SortKeys), lists are sorted on it
+	public static final String COLUMN_SORT_KEY = "sortKey";
 
-	private static final String DATABASE_NAME = "tags.db";
-	private static final int DATABASE_VERSION = 1;
+	// Outbox of operations made locally that still need to be sent to the Evernote service
+	public static final String TABLE_PENDING_OPS = "pending_ops";
+	public static final String COLUMN_TASK = "task";
+	public static final String COLUMN_HAS_PARENT = "hasParent";
+	public static final String COLUMN_CURRENT_PARENT_GUID = "currentParentGuid";
+	// Number of failed attempts to send an operation, and when (wall clock) to try again
+	public static final String COLUMN_ATTEMPTS = "attempts";
+	public static final String COLUMN_NEXT_ATTEMPT_AT = "nextAttemptAt";
+
+	// Full text index over the tag names, its docid is the _id of the tag. Kept up to date by triggers
+	public static final String TABLE_TAGS_FTS = "tags_fts";
+	public static final String TRIGGER_TAGS_FTS_INSERT = "tags_fts_insert";
+	public static final String TRIGGER_TAGS_FTS_UPDATE = "tags_fts_update";
+	public static final String TRIGGER_TAGS_FTS_DELETE = "tags_fts_delete";
+
+	// Key/value settings of the database itself, like the locale the sort keys were built for
+	public static final String TABLE_METADATA = "metadata";
+	public static final String COLUMN_KEY = "key";
+	public static final String COLUMN_VALUE = "value";
+
+	public static final String INDEX_TAGS_GUID = "tags_guid_idx";
+	public static final String INDEX_TAGS_PARENT_NAME = "tags_parent_name_idx";
+	public static final String INDEX_TAGS_PATH = "tags_path_idx";
+	public static final String INDEX_TAGS_PARENT_SORT_KEY = "tags_parent_sort_key_idx";
+
+	static final String DATABASE_NAME = "tags.db";
+	private static final int DATABASE_VERSION = 7;
 
 	// Database creation sql statement
 	private static final String DATABASE_CREATE = "create table "
@@ -38,21 +71,120 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
 	public DatabaseHelper(Context context) {
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		// With write-ahead logging the database keeps a pool of connections, readers get
+		// their own connection and see the last committed data while the sync service writes
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+			setWriteAheadLoggingEnabled(true);
+	}
+
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+		// Before Jelly Bean WAL can only be enabled once the database is open
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+				&& Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly())
+			db.enableWriteAheadLogging();
 	}
 
 
 	@Override
 	public void onCreate(SQLiteDatabase database) {
-		// on creation of the helper, we create our table
+		// on creation of the helper, we create our table as it was on the first version
+		// and then bring it up to date with the same migrations used for upgrades
 		database.execSQL(DATABASE_CREATE);
+		migrate(database, 1, DATABASE_VERSION);
 	}
 
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 		Log.w(TAG,
 				"Upgrading database from version " + oldVersion + " to "
-						+ newVersion + ", which will destroy all old data");
-		db.execSQL("DROP TABLE IF EXISTS " + TABLE_TAGS);
-		onCreate(db);
+						+ newVersion);
+		migrate(db, oldVersion, newVersion);
+	}
+
+	/**
+	 * Run, in order, every migration needed to take the schema from one version to another.
+	 * <p>{@link SQLiteOpenHelper} already wraps onCreate/onUpgrade in a transaction, so
+	 * a failed migration leaves the database untouched.</p>
+	 * @param	db	The {@link SQLiteDatabase} being migrated.
+	 * @param	fromVersion	The current version of the schema.
+	 * @param	toVersion	The version we want to reach.
+	 * 
+	 */
+	private void migrate(SQLiteDatabase db, int fromVersion, int toVersion) {
+		for (int version = fromVersion + 1; version <= toVersion; version++) {
+			switch (version) {
+			case 2:
+				// A unique index on guid can't be created while there are duplicates,
+				// so we keep only the most recent row for each guid
+				db.execSQL("DELETE FROM " + TABLE_TAGS + " WHERE " + COLUMN_ID
+						+ " NOT IN (SELECT MAX(" + COLUMN_ID + ") FROM " + TABLE_TAGS
+						+ " GROUP BY " + COLUMN_GUID + ")");
+				db.execSQL("CREATE UNIQUE INDEX " + INDEX_TAGS_GUID + " ON "
+						+ TABLE_TAGS + "(" + COLUMN_GUID + ")");
+				// Child lookups filter on parentGuid and sort by name, using the same 
+				// collation as our queries so the index also provides the sort order
+				db.execSQL("CREATE INDEX " + INDEX_TAGS_PARENT_NAME + " ON "
+						+ TABLE_TAGS + "(" + COLUMN_PARENT_GUID + ", " + COLUMN_NAME + " COLLATE LOCALIZED)");
+				break;
+			case 3:
+				// Local edits are written right away, and sent to the service from the outbox
+				db.execSQL("ALTER TABLE " + TABLE_TAGS + " ADD COLUMN " + COLUMN_PENDING
+						+ " integer not null default 0");
+				db.execSQL("CREATE TABLE " + TABLE_PENDING_OPS + "(" + COLUMN_ID
+						+ " integer primary key autoincrement, " + COLUMN_TASK
+						+ " text not null, " + COLUMN_GUID
+						+ " text, " + COLUMN_NAME
+						+ " text, " + COLUMN_PARENT_GUID
+						+ " text, " + COLUMN_HAS_PARENT
+						+ " integer not null default 0, " + COLUMN_CURRENT_PARENT_GUID
+						+ " text)");
+				break;
+			case 4:
+				// Failed operations are retried with backoff, even across restarts
+				db.execSQL("ALTER TABLE " + TABLE_PENDING_OPS + " ADD COLUMN " + COLUMN_ATTEMPTS
+						+ " integer not null default 0");
+				db.execSQL("ALTER TABLE " + TABLE_PENDING_OPS + " ADD COLUMN " + COLUMN_NEXT_ATTEMPT_AT
+						+ " integer not null default 0");
+				break;
+			case 5:
+				// Materialized ancestry, a subtree is a range of paths. The values are filled
+				// from the in-memory index the next time it's loaded
+				db.execSQL("ALTER TABLE " + TABLE_TAGS + " ADD COLUMN " + COLUMN_PATH + " text");
+				db.execSQL("ALTER TABLE " + TABLE_TAGS + " ADD COLUMN " + COLUMN_DEPTH
+						+ " integer not null default 0");
+				db.execSQL("CREATE INDEX " + INDEX_TAGS_PATH + " ON " + TABLE_TAGS + "(" + COLUMN_PATH + ")");
+				break;
+			case 6:
+				// Name search. FTS3 is the version available on every API level we support, 
+				// the triggers keep the index in step with every write to the tags table
+				db.execSQL("CREATE VIRTUAL TABLE " + TABLE_TAGS_FTS + " USING fts3(" + COLUMN_NAME + ")");
+				db.execSQL("CREATE TRIGGER " + TRIGGER_TAGS_FTS_INSERT + " AFTER INSERT ON " + TABLE_TAGS
+						+ " BEGIN INSERT INTO " + TABLE_TAGS_FTS + "(docid, " + COLUMN_NAME + ") VALUES (new." 
+						+ COLUMN_ID + ", new." + COLUMN_NAME + "); END");
+				db.execSQL("CREATE TRIGGER " + TRIGGER_TAGS_FTS_UPDATE + " AFTER UPDATE OF " + COLUMN_NAME 
+						+ " ON " + TABLE_TAGS + " BEGIN UPDATE " + TABLE_TAGS_FTS + " SET " + COLUMN_NAME 
+						+ " = new." + COLUMN_NAME + " WHERE docid = old." + COLUMN_ID + "; END");
+				db.execSQL("CREATE TRIGGER " + TRIGGER_TAGS_FTS_DELETE + " AFTER DELETE ON " + TABLE_TAGS
+						+ " BEGIN DELETE FROM " + TABLE_TAGS_FTS + " WHERE docid = old." + COLUMN_ID + "; END");
+				db.execSQL("INSERT INTO " + TABLE_TAGS_FTS + "(docid, " + COLUMN_NAME + ") SELECT " 
+						+ COLUMN_ID + ", " + COLUMN_NAME + " FROM " + TABLE_TAGS);
+				break;
+			case 7:
+				// Lists sort on a stored collation key instead of collating the names on every
+				// query, so a level is read in order straight from the index. The keys depend on 
+				// the locale, they're built the next time the database is opened
+				db.execSQL("ALTER TABLE " + TABLE_TAGS + " ADD COLUMN " + COLUMN_SORT_KEY + " blob");
+				db.execSQL("CREATE TABLE " + TABLE_METADATA + "(" + COLUMN_KEY 
+						+ " text primary key, " + COLUMN_VALUE + " text)");
+				db.execSQL("DROP INDEX IF EXISTS " + INDEX_TAGS_PARENT_NAME);
+				db.execSQL("CREATE INDEX " + INDEX_TAGS_PARENT_SORT_KEY + " ON "
+						+ TABLE_TAGS + "(" + COLUMN_PARENT_GUID + ", " + COLUMN_SORT_KEY + ")");
+				break;
+			default:
+				throw new IllegalStateException("No migration to database version " + version);
+			}
+		}
 	}
 }
@@ -0,0 +1,48 @@
+package com.evernote.android.sample.tageditor.data;
+
+import java.text.Collator;
+import java.util.Locale;
+
+/**
+ * Builds the sort keys stored with every tag
+ * <p> A sort key is the collation key of the name for the current locale. Comparing two
+ * keys byte by byte gives the same order as comparing the names with the locale rules,
+ * so SQLite can sort (and index) the keys as plain BLOBs instead of running the
+ * locale collation on every comparison.</p>
+ * <p> Keys are only comparable when they were built for the same locale, so
+ * {@link TagsDb} rebuilds the stored keys when the locale changes.</p>
+ *
+ */
+final class SortKeys {
+
+	// Collators aren't thread safe, so every use goes through the class lock
+	private static Locale locale;
+	private static Collator collator;
+
+	private SortKeys() {
+	}
+
+	/**
+	 * Obtain the sort key of a tag name, for the current locale.
+	 * @returns the key, or null if there's no name.
+	 *
+	 */
+	static synchronized byte[] of(String name) {
+		if (name == null)
+			return null;
+		Locale current = Locale.getDefault();
+		if (collator == null || !current.equals(locale)) {
+			locale = current;
+			collator = Collator.getInstance(current);
+		}
+		return collator.getCollationKey(name).toByteArray();
+	}
+
+	/**
+	 * Obtain the locale the sort keys are built for, as stored on the metadata table.
+	 *
+	 */
+	static String getLocaleName() {
+		return Locale.getDefault().toString();
+	}
+}
@@ -0,0 +1,450 @@
+package com.evernote.android.sample.tageditor.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.evernote.edam.type.Tag;
+
+/**
+ * Writes Tag rows, and the outbox rows that go with the local changes, using pre-compiled statements
+ * <p> The statements are compiled once and reused for every row, binding the values
+ * of each tag instead of building a {@link android.content.ContentValues} per row.
+ * Inserts of tags from the service are buffered and written in batches with a single 
+ * multi-row statement. Any other write to a tag that is still buffered flushes the batch 
+ * first, so it finds the row (a tag can come twice on the same sync chunk).</p>
+ * <p> The writer doesn't manage transactions, the caller is expected to open one
+ * before the first write and commit it after {@link #flush()}.
+ * It's not thread safe, it can only be shared between threads that use it inside 
+ * a write transaction (which only one thread holds at a time).</p>
+ *
+ */
+class TagBatchWriter {
+
+	// Number of rows per multi-row insert used when none is specified
+	static final int DEFAULT_BATCH_SIZE = 100;
+
+	// SQLite limits the number of bound arguments on a statement to 999,
+	// and the number of terms on a compound SELECT to 500
+	private static final int MAX_BOUND_ARGUMENTS = 999;
+	private static final int MAX_COMPOUND_SELECT = 500;
+
+	private static final String[] COLUMNS = { DatabaseHelper.COLUMN_GUID, DatabaseHelper.COLUMN_NAME,
+		DatabaseHelper.COLUMN_PARENT_GUID, DatabaseHelper.COLUMN_UPDATE_SEQ_NUM, DatabaseHelper.COLUMN_SORT_KEY };
+
+	private final SQLiteDatabase database;
+	private final int batchSize;
+	private final Tag[] pendingInserts;
+	private int pendingCount;
+
+	// Statements are compiled lazily, the first time we need them
+	private SQLiteStatement insertStatement;
+	private SQLiteStatement batchInsertStatement;
+	private SQLiteStatement updateStatement;
+	private SQLiteStatement deleteStatement;
+	private SQLiteStatement moveStatement;
+	private SQLiteStatement insertLocalStatement;
+	private SQLiteStatement updateLocalStatement;
+	private SQLiteStatement updateSequenceNumStatement;
+	private SQLiteStatement insertOperationStatement;
+	private SQLiteStatement deleteOperationStatement;
+	private SQLiteStatement updateOperationStatement;
+	private SQLiteStatement retryStatement;
+	private SQLiteStatement pendingFlagStatement;
+	private SQLiteStatement ancestryStatement;
+
+	/**
+	 * Create a writer that inserts rows in batches of {@link #DEFAULT_BATCH_SIZE}.
+	 *
+	 */
+	TagBatchWriter(SQLiteDatabase database) {
+		this(database, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Create a writer that inserts rows in batches of the given size.
+	 * @param	database	The {@link SQLiteDatabase} to write to.
+	 * @param	batchSize	Number of rows written by each insert statement, it gets capped
+	 * to what SQLite can take on a single statement.
+	 *
+	 */
+	TagBatchWriter(SQLiteDatabase database, int batchSize) {
+		this.database = database;
+		this.batchSize = Math.max(1, Math.min(batchSize,
+				Math.min(MAX_BOUND_ARGUMENTS / COLUMNS.length, MAX_COMPOUND_SELECT)));
+		this.pendingInserts = new Tag[this.batchSize];
+	}
+
+	/**
+	 * Insert a tag. The row is written once the current batch is full or on {@link #flush()}.
+	 *
+	 */
+	void insert(Tag tag) {
+		pendingInserts[pendingCount++] = tag;
+		if (pendingCount == batchSize)
+			flush();
+	}
+
+	/**
+	 * Update the row of a tag, matching it by Guid.
+	 *
+	 */
+	void update(Tag tag) {
+		flushIfBuffered(tag.getGuid());
+		if (updateStatement == null) {
+			updateStatement = database.compileStatement("UPDATE " + DatabaseHelper.TABLE_TAGS + " SET "
+					+ DatabaseHelper.COLUMN_NAME + " = ?, " + DatabaseHelper.COLUMN_PARENT_GUID + " = ?, "
+					+ DatabaseHelper.COLUMN_UPDATE_SEQ_NUM + " = ?, " + DatabaseHelper.COLUMN_SORT_KEY 
+					+ " = ? WHERE " + DatabaseHelper.COLUMN_GUID + " = ?");
+		}
+		bindString(updateStatement, 1, tag.getName());
+		bindString(updateStatement, 2, tag.getParentGuid());
+		updateStatement.bindLong(3, tag.getUpdateSequenceNum());
+		bindBlob(updateStatement, 4, SortKeys.of(tag.getName()));
+		bindString(updateStatement, 5, tag.getGuid());
+		updateStatement.execute();
+	}
+
+	/**
+	 * Delete the row of a tag by Guid.
+	 *
+	 */
+	void delete(String guid) {
+		flushIfBuffered(guid);
+		if (deleteStatement == null) {
+			deleteStatement = database.compileStatement("DELETE FROM " + DatabaseHelper.TABLE_TAGS
+					+ " WHERE " + DatabaseHelper.COLUMN_GUID + " = ?");
+		}
+		bindString(deleteStatement, 1, guid);
+		deleteStatement.execute();
+	}
+
+	/**
+	 * Move a tag under a new parent, and flag it as pending to be sent to the service.
+	 * @param	guid	the Guid of the tag to move.
+	 * @param	parentGuid	the Guid of the new parent, or null to make it a top level tag.
+	 *
+	 */
+	void move(String guid, String parentGuid) {
+		flushIfBuffered(guid);
+		if (moveStatement == null) {
+			moveStatement = database.compileStatement("UPDATE " + DatabaseHelper.TABLE_TAGS + " SET " 
+					+ DatabaseHelper.COLUMN_PARENT_GUID + " = ?, " + DatabaseHelper.COLUMN_PENDING + " = 1 WHERE " 
+					+ DatabaseHelper.COLUMN_GUID + " = ?");
+		}
+		bindString(moveStatement, 1, parentGuid);
+		bindString(moveStatement, 2, guid);
+		moveStatement.execute();
+	}
+
+	/**
+	 * Insert a tag created locally, flagged as pending to be sent to the service.
+	 * @param	guid	the provisional Guid of the tag.
+	 * @param	name	the name of the tag.
+	 * @param	parentGuid	the Guid of the parent, or null for a top level tag.
+	 *
+	 */
+	void insertLocal(String guid, String name, String parentGuid) {
+		if (insertLocalStatement == null) {
+			insertLocalStatement = database.compileStatement("INSERT INTO " + DatabaseHelper.TABLE_TAGS + " (" 
+					+ DatabaseHelper.COLUMN_GUID + ", " + DatabaseHelper.COLUMN_NAME + ", " 
+					+ DatabaseHelper.COLUMN_PARENT_GUID + ", " + DatabaseHelper.COLUMN_SORT_KEY + ", " 
+					+ DatabaseHelper.COLUMN_UPDATE_SEQ_NUM + ", " + DatabaseHelper.COLUMN_PENDING 
+					+ ") VALUES (?, ?, ?, ?, 0, 1)");
+		}
+		bindString(insertLocalStatement, 1, guid);
+		bindString(insertLocalStatement, 2, name);
+		bindString(insertLocalStatement, 3, parentGuid);
+		bindBlob(insertLocalStatement, 4, SortKeys.of(name));
+		insertLocalStatement.execute();
+	}
+
+	/**
+	 * Update a tag locally, flagging it as pending to be sent to the service.
+	 * @param	guid	the Guid of the tag.
+	 * @param	name	the new name of the tag, or null to keep the current one.
+	 * @param	hasParent	{@link true} if the parent of the tag changes.
+	 * @param	parentGuid	the Guid of the new parent, or null to make it a top level tag.
+	 *
+	 */
+	void updateLocal(String guid, String name, boolean hasParent, String parentGuid) {
+		flushIfBuffered(guid);
+		if (updateLocalStatement == null) {
+			// a null name keeps the current one, and the parent only changes if the flag is set
+			updateLocalStatement = database.compileStatement("UPDATE " + DatabaseHelper.TABLE_TAGS + " SET " 
+					+ DatabaseHelper.COLUMN_NAME + " = coalesce(?, " + DatabaseHelper.COLUMN_NAME + "), " 
+					+ DatabaseHelper.COLUMN_SORT_KEY + " = coalesce(?, " + DatabaseHelper.COLUMN_SORT_KEY + "), " 
+					+ DatabaseHelper.COLUMN_PARENT_GUID + " = CASE ? WHEN 0 THEN " + DatabaseHelper.COLUMN_PARENT_GUID 
+					+ " ELSE ? END, " + DatabaseHelper.COLUMN_PENDING + " = 1 WHERE " + DatabaseHelper.COLUMN_GUID + " = ?");
+		}
+		bindString(updateLocalStatement, 1, name);
+		bindBlob(updateLocalStatement, 2, (name != null) ? SortKeys.of(name) : null);
+		updateLocalStatement.bindLong(3, hasParent ? 1 : 0);
+		bindString(updateLocalStatement, 4, parentGuid);
+		bindString(updateLocalStatement, 5, guid);
+		updateLocalStatement.execute();
+	}
+
+	/**
+	 * Set the updateSequenceNum of a tag.
+	 *
+	 */
+	void setUpdateSequenceNum(String guid, int updateSequenceNum) {
+		flushIfBuffered(guid);
+		if (updateSequenceNumStatement == null) {
+			updateSequenceNumStatement = database.compileStatement("UPDATE " + DatabaseHelper.TABLE_TAGS + " SET " 
+					+ DatabaseHelper.COLUMN_UPDATE_SEQ_NUM + " = ? WHERE " + DatabaseHelper.COLUMN_GUID + " = ?");
+		}
+		updateSequenceNumStatement.bindLong(1, updateSequenceNum);
+		bindString(updateSequenceNumStatement, 2, guid);
+		updateSequenceNumStatement.execute();
+	}
+
+	/**
+	 * Add an operation to the outbox.
+	 * @returns the id of the operation.
+	 *
+	 */
+	long insertOperation(String task, String guid, String name, boolean hasParent, String parentGuid, 
+			String currentParentGuid) {
+		if (insertOperationStatement == null) {
+			insertOperationStatement = database.compileStatement("INSERT INTO " + DatabaseHelper.TABLE_PENDING_OPS 
+					+ " (" + DatabaseHelper.COLUMN_TASK + ", " + DatabaseHelper.COLUMN_GUID + ", " 
+					+ DatabaseHelper.COLUMN_NAME + ", " + DatabaseHelper.COLUMN_HAS_PARENT + ", " 
+					+ DatabaseHelper.COLUMN_PARENT_GUID + ", " + DatabaseHelper.COLUMN_CURRENT_PARENT_GUID 
+					+ ") VALUES (?, ?, ?, ?, ?, ?)");
+		}
+		bindString(insertOperationStatement, 1, task);
+		bindString(insertOperationStatement, 2, guid);
+		bindString(insertOperationStatement, 3, name);
+		insertOperationStatement.bindLong(4, hasParent ? 1 : 0);
+		bindString(insertOperationStatement, 5, parentGuid);
+		bindString(insertOperationStatement, 6, currentParentGuid);
+		return insertOperationStatement.executeInsert();
+	}
+
+	/**
+	 * Rewrite the name and parents of an operation on the outbox.
+	 *
+	 */
+	void updateOperation(long id, String name, boolean hasParent, String parentGuid, String currentParentGuid) {
+		if (updateOperationStatement == null) {
+			updateOperationStatement = database.compileStatement("UPDATE " + DatabaseHelper.TABLE_PENDING_OPS 
+					+ " SET " + DatabaseHelper.COLUMN_NAME + " = ?, " + DatabaseHelper.COLUMN_HAS_PARENT + " = ?, " 
+					+ DatabaseHelper.COLUMN_PARENT_GUID + " = ?, " + DatabaseHelper.COLUMN_CURRENT_PARENT_GUID 
+					+ " = ? WHERE " + DatabaseHelper.COLUMN_ID + " = ?");
+		}
+		bindString(updateOperationStatement, 1, name);
+		updateOperationStatement.bindLong(2, hasParent ? 1 : 0);
+		bindString(updateOperationStatement, 3, parentGuid);
+		bindString(updateOperationStatement, 4, currentParentGuid);
+		updateOperationStatement.bindLong(5, id);
+		updateOperationStatement.execute();
+	}
+
+	/**
+	 * Record the failed attempts of an operation on the outbox, and when it runs again.
+	 *
+	 */
+	void setRetry(long id, int attempts, long nextAttemptAt) {
+		if (retryStatement == null) {
+			retryStatement = database.compileStatement("UPDATE " + DatabaseHelper.TABLE_PENDING_OPS + " SET " 
+					+ DatabaseHelper.COLUMN_ATTEMPTS + " = ?, " + DatabaseHelper.COLUMN_NEXT_ATTEMPT_AT + " = ? WHERE " 
+					+ DatabaseHelper.COLUMN_ID + " = ?");
+		}
+		retryStatement.bindLong(1, attempts);
+		retryStatement.bindLong(2, nextAttemptAt);
+		retryStatement.bindLong(3, id);
+		retryStatement.execute();
+	}
+
+	/**
+	 * Remove an operation from the outbox.
+	 *
+	 */
+	void deleteOperation(long id) {
+		if (deleteOperationStatement == null) {
+			deleteOperationStatement = database.compileStatement("DELETE FROM " + DatabaseHelper.TABLE_PENDING_OPS 
+					+ " WHERE " + DatabaseHelper.COLUMN_ID + " = ?");
+		}
+		deleteOperationStatement.bindLong(1, id);
+		deleteOperationStatement.execute();
+	}
+
+	/**
+	 * Clear the pending flag of a tag if it has no operations left on the outbox.
+	 *
+	 */
+	void updatePendingFlag(String guid) {
+		flushIfBuffered(guid);
+		if (pendingFlagStatement == null)
+			pendingFlagStatement = database.compileStatement(TagsDb.UPDATE_PENDING_FLAG);
+		bindString(pendingFlagStatement, 1, guid);
+		bindString(pendingFlagStatement, 2, guid);
+		pendingFlagStatement.execute();
+	}
+
+	/**
+	 * Set the path and depth of a tag, as worked out by the in-memory index.
+	 * @param	guid	the Guid of the tag.
+	 * @param	path	the path of the tag, or null if its ancestry isn't complete.
+	 * @param	depth	the depth of the tag, 0 for a top level tag.
+	 *
+	 */
+	void setAncestry(String guid, String path, int depth) {
+		flushIfBuffered(guid);
+		if (ancestryStatement == null) {
+			ancestryStatement = database.compileStatement("UPDATE " + DatabaseHelper.TABLE_TAGS + " SET " 
+					+ DatabaseHelper.COLUMN_PATH + " = ?, " + DatabaseHelper.COLUMN_DEPTH + " = ? WHERE " 
+					+ DatabaseHelper.COLUMN_GUID + " = ?");
+		}
+		bindString(ancestryStatement, 1, path);
+		ancestryStatement.bindLong(2, depth);
+		bindString(ancestryStatement, 3, guid);
+		ancestryStatement.execute();
+	}
+
+	/**
+	 * Write all the buffered inserts.
+	 *
+	 */
+	void flush() {
+		if (pendingCount == 0)
+			return;
+		if (pendingCount == batchSize && batchSize > 1) {
+			// a full batch goes in a single statement
+			if (batchInsertStatement == null)
+				batchInsertStatement = database.compileStatement(buildInsert(batchSize));
+			bindInserts(batchInsertStatement, 0, pendingCount);
+			batchInsertStatement.execute();
+		} else {
+			// a partial batch is written one row at a time, so we only need two statements
+			if (insertStatement == null)
+				insertStatement = database.compileStatement(buildInsert(1));
+			for (int i = 0; i < pendingCount; i++) {
+				bindInserts(insertStatement, i, 1);
+				insertStatement.execute();
+			}
+		}
+		// we don't hold references to the tags after writing them
+		for (int i = 0; i < pendingCount; i++) {
+			pendingInserts[i] = null;
+		}
+		pendingCount = 0;
+	}
+
+	/**
+	 * Write the buffered inserts if one of them is the given tag, so a write to 
+	 * its row doesn't run before the row exists.
+	 *
+	 */
+	private void flushIfBuffered(String guid) {
+		for (int i = 0; i < pendingCount; i++) {
+			if (pendingInserts[i].getGuid().equals(guid)) {
+				flush();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Drop the inserts that weren't flushed, after the transaction they belong to failed.
+	 * The compiled statements are kept.
+	 *
+	 */
+	void discard() {
+		for (int i = 0; i < pendingCount; i++) {
+			pendingInserts[i] = null;
+		}
+		pendingCount = 0;
+	}
+
+	/**
+	 * Release the compiled statements. Any insert that wasn't flushed is discarded.
+	 *
+	 */
+	void close() {
+		close(insertStatement);
+		close(batchInsertStatement);
+		close(updateStatement);
+		close(deleteStatement);
+		close(moveStatement);
+		close(insertLocalStatement);
+		close(updateLocalStatement);
+		close(updateSequenceNumStatement);
+		close(insertOperationStatement);
+		close(deleteOperationStatement);
+		close(updateOperationStatement);
+		close(retryStatement);
+		close(pendingFlagStatement);
+		close(ancestryStatement);
+		insertStatement = batchInsertStatement = updateStatement = deleteStatement = moveStatement = null;
+		insertLocalStatement = updateLocalStatement = updateSequenceNumStatement = null;
+		insertOperationStatement = deleteOperationStatement = updateOperationStatement = retryStatement = null;
+		pendingFlagStatement = ancestryStatement = null;
+		discard();
+	}
+
+	/**
+	 * Bind a number of buffered tags, starting at the given offset.
+	 *
+	 */
+	private void bindInserts(SQLiteStatement statement, int offset, int count) {
+		int index = 1;
+		for (int i = offset; i < offset + count; i++) {
+			Tag tag = pendingInserts[i];
+			bindString(statement, index++, tag.getGuid());
+			bindString(statement, index++, tag.getName());
+			bindString(statement, index++, tag.getParentGuid());
+			statement.bindLong(index++, tag.getUpdateSequenceNum());
+			bindBlob(statement, index++, SortKeys.of(tag.getName()));
+		}
+	}
+
+	/**
+	 * Build an insert statement for a number of rows. We use a compound SELECT
+	 * instead of a multi-row VALUES clause, since older versions of SQLite don't support it.
+	 *
+	 */
+	private static String buildInsert(int rows) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("INSERT INTO ").append(DatabaseHelper.TABLE_TAGS).append(" (");
+		for (int i = 0; i < COLUMNS.length; i++) {
+			sb.append((i == 0) ? "" : ", ").append(COLUMNS[i]);
+		}
+		sb.append(")");
+		for (int row = 0; row < rows; row++) {
+			sb.append((row == 0) ? " SELECT " : " UNION ALL SELECT ");
+			for (int i = 0; i < COLUMNS.length; i++) {
+				sb.append((i == 0) ? "?" : ", ?");
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * {@link SQLiteStatement#bindString(int, String)} doesn't take nulls.
+	 *
+	 */
+	private static void bindString(SQLiteStatement statement, int index, String value) {
+		if (value == null)
+			statement.bindNull(index);
+		else
+			statement.bindString(index, value);
+	}
+
+	/**
+	 * {@link SQLiteStatement#bindBlob(int, byte[])} doesn't take nulls either.
+	 *
+	 */
+	private static void bindBlob(SQLiteStatement statement, int index, byte[] value) {
+		if (value == null)
+			statement.bindNull(index);
+		else
+			statement.bindBlob(index, value);
+	}
+
+	private static void close(SQLiteStatement statement) {
+		if (statement != null)
+			statement.close();
+	}
+}
@@ -0,0 +1,191 @@
+package com.evernote.android.sample.tageditor.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Intent;
+
+/**
+ * Summary of the changes that a write operation performed on the local Tags table
+ * <p> It holds the Guids of the tags that were inserted, updated and deleted, so
+ * that callers can tell if anything actually changed, and the tags whose provisional
+ * Guid was replaced by the one from the Evernote service.</p>
+ * <p> The sync service sends it along with its broadcasts ({@link #writeTo(Intent)}), 
+ * so the UI can tell which tags a completed operation touched.</p>
+ *
+ */
+public class TagChangeSet {
+
+	// Extras used to send a change set with an Intent, each one is an ArrayList of Guids
+	public static final String EXTRA_INSERTED = "insertedGuids";
+	public static final String EXTRA_UPDATED = "updatedGuids";
+	public static final String EXTRA_DELETED = "deletedGuids";
+	// The provisional Guids that were replaced, and the Guids that replaced them (same order)
+	public static final String EXTRA_REPLACED = "replacedGuids";
+	public static final String EXTRA_REPLACEMENTS = "replacementGuids";
+	// false when the change set stopped recording changes, because there were too many
+	public static final String EXTRA_COMPLETE = "changesComplete";
+
+	private final ArrayList<String> inserted = new ArrayList<String>();
+	private final ArrayList<String> updated = new ArrayList<String>();
+	private final ArrayList<String> deleted = new ArrayList<String>();
+	private final ArrayList<String> replaced = new ArrayList<String>();
+	private final ArrayList<String> replacements = new ArrayList<String>();
+	private boolean complete = true;
+
+	public void addInserted(String guid) {
+		inserted.add(guid);
+	}
+
+	public void addUpdated(String guid) {
+		updated.add(guid);
+	}
+
+	public void addDeleted(String guid) {
+		deleted.add(guid);
+	}
+
+	/**
+	 * Record that a tag got a new Guid.
+	 * @param	oldGuid	the provisional Guid of the tag.
+	 * @param	newGuid	the Guid it has now.
+	 *
+	 */
+	public void addReplaced(String oldGuid, String newGuid) {
+		replaced.add(oldGuid);
+		replacements.add(newGuid);
+	}
+
+	/**
+	 * Add the changes of another change set to this one, as long as this one doesn't
+	 * grow over a limit. Past it we only remember that the change set is incomplete.
+	 * @param	other	the {@link TagChangeSet} to add, may be null.
+	 * @param	limit	the maximum number of Guids to keep.
+	 *
+	 */
+	public void addAll(TagChangeSet other, int limit) {
+		if (other == null || !complete)
+			return;
+		if (size() + other.size() > limit || !other.complete) {
+			complete = false;
+			inserted.clear();
+			updated.clear();
+			deleted.clear();
+			replaced.clear();
+			replacements.clear();
+			return;
+		}
+		inserted.addAll(other.inserted);
+		updated.addAll(other.updated);
+		deleted.addAll(other.deleted);
+		replaced.addAll(other.replaced);
+		replacements.addAll(other.replacements);
+	}
+
+	/**
+	 * Get the Guids of the tags that were inserted.
+	 *
+	 */
+	public List<String> getInserted() {
+		return inserted;
+	}
+
+	/**
+	 * Get the Guids of the tags that were updated.
+	 *
+	 */
+	public List<String> getUpdated() {
+		return updated;
+	}
+
+	/**
+	 * Get the Guids of the tags that were deleted.
+	 *
+	 */
+	public List<String> getDeleted() {
+		return deleted;
+	}
+
+	/**
+	 * Get the provisional Guids that were replaced, {@link #getReplacements()} has
+	 * the new Guids in the same order.
+	 *
+	 */
+	public List<String> getReplaced() {
+		return replaced;
+	}
+
+	/**
+	 * Get the Guids that replaced the ones on {@link #getReplaced()}.
+	 *
+	 */
+	public List<String> getReplacements() {
+		return replacements;
+	}
+
+	/**
+	 * Does the change set list every change, or did it stop recording them.
+	 * When it didn't, any tag may have changed.
+	 *
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Is this change set empty (nothing was written)
+	 *
+	 */
+	public boolean isEmpty() {
+		return complete && size() == 0;
+	}
+
+	private int size() {
+		return inserted.size() + updated.size() + deleted.size() + replaced.size();
+	}
+
+	/**
+	 * Add the change set to an Intent, as extras.
+	 *
+	 */
+	public void writeTo(Intent intent) {
+		intent.putStringArrayListExtra(EXTRA_INSERTED, inserted);
+		intent.putStringArrayListExtra(EXTRA_UPDATED, updated);
+		intent.putStringArrayListExtra(EXTRA_DELETED, deleted);
+		intent.putStringArrayListExtra(EXTRA_REPLACED, replaced);
+		intent.putStringArrayListExtra(EXTRA_REPLACEMENTS, replacements);
+		intent.putExtra(EXTRA_COMPLETE, complete);
+	}
+
+	/**
+	 * Read a change set sent with {@link #writeTo(Intent)}.
+	 * @returns the {@link TagChangeSet}, or null if the Intent doesn't carry one.
+	 *
+	 */
+	public static TagChangeSet fromIntent(Intent intent) {
+		if (!intent.hasExtra(EXTRA_COMPLETE))
+			return null;
+		TagChangeSet changes = new TagChangeSet();
+		changes.complete = intent.getBooleanExtra(EXTRA_COMPLETE, false);
+		addExtra(changes.inserted, intent, EXTRA_INSERTED);
+		addExtra(changes.updated, intent, EXTRA_UPDATED);
+		addExtra(changes.deleted, intent, EXTRA_DELETED);
+		addExtra(changes.replaced, intent, EXTRA_REPLACED);
+		addExtra(changes.replacements, intent, EXTRA_REPLACEMENTS);
+		return changes;
+	}
+
+	private static void addExtra(List<String> list, Intent intent, String name) {
+		List<String> guids = intent.getStringArrayListExtra(name);
+		if (guids != null)
+			list.addAll(guids);
+	}
+
+	@Override
+	public String toString() {
+		if (!complete)
+			return "too many changes";
+		return "inserted: " + inserted.size() + ", updated: " + updated.size() + ", deleted: " + deleted.size()
+				+ ", replaced: " + replaced.size();
+	}
+}
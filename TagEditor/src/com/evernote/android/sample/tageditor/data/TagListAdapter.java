@@ -1,17 +1,26 @@
 package com.evernote.android.sample.tageditor.data;
 
+import java.util.Collections;
+import java.util.Set;
+
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
+import android.graphics.Typeface;
+import android.support.v4.widget.CursorAdapter;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
 import android.widget.TextView;
 
 import com.evernote.android.sample.tageditor.R;
 
 /**
  * Custom CursorAdapter for the main list of Tags
+ * <p> Binding a recycled row doesn't allocate on our side: the views of each row are kept on 
+ * a {@link ViewHolder}, column indices are looked up once per cursor and the text is copied 
+ * from the cursor into buffers that get reused. The TextViews still create a few objects of 
+ * their own when their text changes (TagListAdapterTest on TagEditorTest counts both).</p>
  * 
  * @author Juan Gomez
  * @version 1.0.0
@@ -23,64 +32,163 @@ public class TagListAdapter extends CursorAdapter {
 	private static final int TAG_WITH_CHILDREN = 1;
 	private static final int TOP_LEVEL_TAG = 0;
 	private LayoutInflater mInflater;
+	// Guids of the tags selected on the list, they get highlighted
+	private Set<String> selectedGuids = Collections.emptySet();
+
+	// Column indices of the cursor we last bound, they're only looked up when the cursor changes
+	private Cursor indexedCursor;
+	private int guidIndex;
+	private int nameIndex;
+	private int pendingIndex;
+	private int childCountIndex;
+	private int childNamesIndex;
+	private int ancestryIndex;
+
+	/**
+	 * Views of a row and the buffers used to fill them, kept on the row's tag so that
+	 * binding a recycled row doesn't look up views or allocate new strings.
+	 * 
+	 */
+	static final class ViewHolder {
+
+		private static final char[] ONE_CHILD = "1 Tag:".toCharArray();
+		private static final char[] CHILDREN = " Tags: ".toCharArray();
+
+		final TextView tag_name;
+		// There's a view in this layout that draws a separation line if there's child tags
+		final View separator;
+		final TextView tag_children;
+		final CharArrayBuffer name = new CharArrayBuffer(64);
+		final CharArrayBuffer childNames = new CharArrayBuffer(TagsDb.CHILD_NAMES_LENGTH);
+		// Text of the children summary, grown when a longer one comes along
+		char[] childSummary = new char[TagsDb.CHILD_NAMES_LENGTH + 16];
+
+		ViewHolder(View row) {
+			tag_name = (TextView) row.findViewById(R.id.tag_name);
+			separator = row.findViewById(R.id.separator);
+			tag_children = (TextView) row.findViewById(R.id.tag_children);
+		}
+
+		/**
+		 * Write the children summary ("1 Tag:names" or "3 Tags: names") to {@link #childSummary},
+		 * using the names already copied to {@link #childNames}.
+		 * @returns the length of the summary.
+		 * 
+		 */
+		int setChildSummary(int childCount) {
+			int length;
+			// a count has at most 10 digits
+			int capacity = 10 + CHILDREN.length + childNames.sizeCopied;
+			if (childSummary.length < capacity)
+				childSummary = new char[capacity];
+			if (childCount == 1) {
+				System.arraycopy(ONE_CHILD, 0, childSummary, 0, ONE_CHILD.length);
+				length = ONE_CHILD.length;
+			} else {
+				length = appendNumber(childSummary, 0, childCount);
+				System.arraycopy(CHILDREN, 0, childSummary, length, CHILDREN.length);
+				length += CHILDREN.length;
+			}
+			System.arraycopy(childNames.data, 0, childSummary, length, childNames.sizeCopied);
+			return length + childNames.sizeCopied;
+		}
+
+		/**
+		 * Write the decimal digits of a positive number, without going through a String.
+		 * @returns the position after the last digit.
+		 * 
+		 */
+		private static int appendNumber(char[] buffer, int offset, int number) {
+			int digits = 1;
+			for (int n = number; n >= 10; n /= 10) {
+				digits++;
+			}
+			for (int i = offset + digits - 1; i >= offset; i--) {
+				buffer[i] = (char) ('0' + number % 10);
+				number /= 10;
+			}
+			return offset + digits;
+		}
+	}
 
 	public TagListAdapter(Context context, Cursor c) {
-		super(context, c, false);
+		// no flags, the loader that provides the cursor takes care of observing it
+		super(context, c, 0);
 		mInflater = LayoutInflater.from(context);
 	}
 
+	/**
+	 * Set the tags to highlight as selected. The adapter keeps a reference to the set, 
+	 * so call {@link #notifyDataSetChanged()} after changing it.
+	 * @param	guids	a {@link Set} with the Guids of the selected tags.
+	 * 
+	 */
+	public void setSelectedGuids(Set<String> guids) {
+		selectedGuids = guids;
+		notifyDataSetChanged();
+	}
+
 	@Override
 	public void bindView(View convertView, Context context, Cursor cursor) {
-		// convertView contains an already inflated layout for the row
-		TextView tag_name = (TextView) convertView.findViewById(R.id.tag_name);
-		// There's a view in this layout that draws a separation line if there's
-		// child tags
-		View separator = (View) convertView.findViewById(R.id.separator);
-		// We query the database for children of this tag
-		Cursor childCursor = TagsDb.INSTANCE.getChildTags(cursor.getString(cursor
-				.getColumnIndex(DatabaseHelper.COLUMN_GUID)));
-
-		if(childCursor != null) {
-			if(childCursor.getCount() > 0) {
-				// If we find children we need to make the separator visible 
-				separator.setVisibility(View.VISIBLE);
-				// and modify the tag_children TextView to dispaly the number of children
-				TextView tag_children = (TextView) convertView.findViewById(R.id.tag_children);
-				// the text changes depending on the number of children
-				switch(childCursor.getCount()) {
-				case 1:
-					// case for just one children
-					childCursor.moveToFirst();
-					tag_children.setText("1 Tag:" + childCursor.getString(cursor
-							.getColumnIndex(DatabaseHelper.COLUMN_NAME)));
-					break;
-				default:
-					// case for multiple children
-					StringBuilder sb = new StringBuilder();
-					sb.append(childCursor.getCount());
-					sb.append(" Tags: ");
-					while(childCursor.moveToNext()) {
-						sb.append(childCursor.getString(cursor
-								.getColumnIndex(DatabaseHelper.COLUMN_NAME)));
-						// we need to add a comma to all elements but the last one
-						if(!cursor.isLast())
-							sb.append(", ");
-					}
-					tag_children.setText(sb.toString());
-					break;
-				}
-			}
-			// we don't need the childCursor anymore so it's safe to close it
-			childCursor.close();
+		// convertView contains an already inflated layout for the row, with its views
+		// already looked up on its holder
+		ViewHolder holder = (ViewHolder) convertView.getTag();
+		resolveColumns(cursor);
+		// The level query already includes the number of children and their names, 
+		// so we don't need to query the database for each row
+		int childCount = cursor.getInt(childCountIndex);
+
+		if(ancestryIndex >= 0) {
+			// search results come from every level, so instead of the children we show where the tag is
+			cursor.copyStringToBuffer(ancestryIndex, holder.childNames);
+			holder.separator.setVisibility((holder.childNames.sizeCopied == 0) ? View.INVISIBLE : View.VISIBLE);
+			holder.tag_children.setText(holder.childNames.data, 0, holder.childNames.sizeCopied);
+		} else if(childCount > 0) {
+			// If we find children we need to make the separator visible 
+			holder.separator.setVisibility(View.VISIBLE);
+			// and modify the tag_children TextView to display the number of children,
+			// the text changes depending on the number of children
+			cursor.copyStringToBuffer(childNamesIndex, holder.childNames);
+			int length = holder.setChildSummary(childCount);
+			holder.tag_children.setText(holder.childSummary, 0, length);
+		} else {
+			// rows get recycled, so we need to clear what a previous tag could have set
+			holder.separator.setVisibility(View.INVISIBLE);
+			holder.tag_children.setText(holder.childSummary, 0, 0);
 		}
-		tag_name.setText(cursor.getString(cursor
-				.getColumnIndex(DatabaseHelper.COLUMN_NAME)));
+		// the name is copied into the holder's buffer, instead of creating a String per row
+		cursor.copyStringToBuffer(nameIndex, holder.name);
+		holder.tag_name.setText(holder.name.data, 0, holder.name.sizeCopied);
+		// tags with changes that haven't reached Evernote yet are shown in italics
+		boolean pending = cursor.getInt(pendingIndex) != 0;
+		holder.tag_name.setTypeface(null, pending ? Typeface.ITALIC : Typeface.NORMAL);
+		// selected rows get a highlighted background, we only need the Guid while there's a selection
+		boolean selected = !selectedGuids.isEmpty() && selectedGuids.contains(cursor.getString(guidIndex));
+		convertView.setBackgroundResource(selected ? R.drawable.selected_background : 0);
 	}
 
 	@Override
 	public View newView(Context context, Cursor cursor, ViewGroup parent) {
-		// on each call of new view, we inflate the row layout.
-		return mInflater.inflate(R.layout.tag_list_item, parent, false);
+		// on each call of new view, we inflate the row layout and look up its views once
+		View view = mInflater.inflate(R.layout.tag_list_item, parent, false);
+		view.setTag(new ViewHolder(view));
+		return view;
+	}
+
+	/**
+	 * Look up the indices of the columns we bind, once for every cursor.
+	 * 
+	 */
+	private void resolveColumns(Cursor cursor) {
+		if (cursor == indexedCursor)
+			return;
+		indexedCursor = cursor;
+		guidIndex = cursor.getColumnIndex(DatabaseHelper.COLUMN_GUID);
+		nameIndex = cursor.getColumnIndex(DatabaseHelper.COLUMN_NAME);
+		pendingIndex = cursor.getColumnIndex(DatabaseHelper.COLUMN_PENDING);
+		childCountIndex = cursor.getColumnIndex(TagsDb.COLUMN_CHILD_COUNT);
+		childNamesIndex = cursor.getColumnIndex(TagsDb.COLUMN_CHILD_NAMES);
+		ancestryIndex = cursor.getColumnIndex(TagsDb.COLUMN_ANCESTRY);
 	}
 
 	/**
@@ -92,9 +200,8 @@ public class TagListAdapter extends CursorAdapter {
 	public int getItemViewType(int position) {
 		Cursor cursor = getCursor();
 		cursor.moveToPosition(position);
-		Cursor childCursor = TagsDb.INSTANCE.getChildTags(cursor.getString(cursor
-				.getColumnIndex(DatabaseHelper.COLUMN_GUID)));
-		return (childCursor != null && childCursor.getCount() > 0) ? TAG_WITH_CHILDREN : TOP_LEVEL_TAG;
+		resolveColumns(cursor);
+		return (cursor.getInt(childCountIndex) > 0) ? TAG_WITH_CHILDREN : TOP_LEVEL_TAG;
 	}
 
 	/**
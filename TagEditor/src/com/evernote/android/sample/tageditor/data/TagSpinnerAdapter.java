@@ -1,64 +1,85 @@
 package com.evernote.android.sample.tageditor.data;
 
 
-import java.util.List;
-
 import android.content.Context;
+import android.database.Cursor;
+import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
-import android.widget.CheckedTextView;
+import android.widget.CursorAdapter;
 import android.widget.TextView;
 
-import com.evernote.edam.type.Tag;
-
 /**
- * Custom ArrayAdapter for the Spinner widget on the Add/Edit Dialog Fragment
- * <p> We needed to create a custom a ArrayAdapter since we're using a list of 
- * Tag objects instead of plain strings. </p>
- * 
+ * Custom CursorAdapter for the Spinner widget on the Add/Edit Dialog Fragment
+ * <p> The possible parents come straight from a cursor (see
+ * {@link TagsDb#getParentCandidates(String, String, CharSequence)}), so only the rows
+ * the spinner shows get read, instead of building a Tag object for every tag on the account.
+ * The list can be narrowed down with {@link #getFilter()}, once a FilterQueryProvider is set.</p>
+ *
  * @author Juan Gomez
  * @version 1.0.0
  * @since December 4, 2012
- * 
+ *
  */
-public class TagSpinnerAdapter extends ArrayAdapter<Tag> {
+public class TagSpinnerAdapter extends CursorAdapter {
+
+	private LayoutInflater mInflater;
+
+	public TagSpinnerAdapter(Context context, Cursor c) {
+		super(context, c, false);
+		mInflater = LayoutInflater.from(context);
+	}
 
-	public TagSpinnerAdapter(Context context, int textViewResourceId, List<Tag> objects) {
-		super(context, textViewResourceId, objects);
+	@Override
+	public void bindView(View view, Context context, Cursor cursor) {
+		// both layouts have a TextView (a CheckedTextView on the drop down) with the Tag name
+		TextView tag_name = (TextView) view.findViewById(android.R.id.text1);
+		tag_name.setText(cursor.getString(cursor.getColumnIndex(DatabaseHelper.COLUMN_NAME)));
 	}
 
 	/**
-	 * We need to override {@link ArrayAdapter#getDropDownView(int,View,ViewGroup)} 
-	 * for the Drop Down list to show correctly.
-	 * 
+	 * The collapsed Spinner uses the default spinner layout.
+	 *
 	 */
 	@Override
-	public View getDropDownView(int position, View convertView, ViewGroup parent) {
-		// we get the View form the parent's implementation
-		View v = super.getDropDownView(position, convertView, parent);
-		// Look for the CheckedTextView on the view
-		CheckedTextView tag_name = (CheckedTextView) v.findViewById(android.R.id.text1);
-		// And make the text of the CheckedTextView be equal to the Tag name
-		tag_name.setText(getItem(position).getName());
-		// finally returned the modified view.
-		return v;
+	public View newView(Context context, Cursor cursor, ViewGroup parent) {
+		return mInflater.inflate(android.R.layout.simple_spinner_item, parent, false);
 	}
 
 	/**
-	 * We also need to override {@link ArrayAdapter#getView(int,View,ViewGroup)} 
-	 * for the Spinner to display correctly when collapsed.
-	 * 
+	 * We need to override {@link CursorAdapter#newDropDownView(Context, Cursor, ViewGroup)}
+	 * for the Drop Down list to show correctly.
+	 *
 	 */
 	@Override
-	public View getView(int position, View convertView, ViewGroup parent) {
-		// same process as getDropDownView(...)
-		View v = super.getView(position, convertView, parent);
-		// Here we have a TextView instead of a CheckedTextView since the 
-		// ArrayAdapter uses different layouts for the collapsed Spinner 
-		// and the drop down list.
-		TextView tag_name = (TextView) v.findViewById(android.R.id.text1);
-		tag_name.setText(getItem(position).getName());
-		return v;
+	public View newDropDownView(Context context, Cursor cursor, ViewGroup parent) {
+		return mInflater.inflate(android.R.layout.simple_spinner_dropdown_item, parent, false);
+	}
+
+	/**
+	 * Obtain the Guid of the Tag on the current row of a cursor from this adapter.
+	 * @returns the Guid, or null for the empty tag.
+	 *
+	 */
+	public static String getGuid(Cursor cursor) {
+		return cursor.getString(cursor.getColumnIndex(DatabaseHelper.COLUMN_GUID));
+	}
+
+	/**
+	 * Find the row of a Tag on the current cursor.
+	 * @param	guid	the Guid of the Tag, or null for the empty tag.
+	 * @returns the position of the row, or -1 if the Tag isn't on the cursor.
+	 *
+	 */
+	public int getPosition(String guid) {
+		Cursor cursor = getCursor();
+		if (cursor == null)
+			return -1;
+		for (int position = 0; cursor.moveToPosition(position); position++) {
+			String rowGuid = getGuid(cursor);
+			if ((guid == null) ? rowGuid == null : guid.equals(rowGuid))
+				return position;
+		}
+		return -1;
 	}
-}
\ No newline at end of file
+}
@@ -1,22 +1,41 @@
 package com.evernote.android.sample.tageditor.data;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.evernote.android.sample.tageditor.core.TagDiff;
+import com.evernote.android.sample.tageditor.core.TagTree;
 import com.evernote.edam.type.Tag;
 
 /**
  * This class encapsulates all Database operations.
  * <p> it needs to be a singleton so that we can call it both from our ListFragment
  * and our service, avoiding any threading issues</p>
+ * <p> The database uses write-ahead logging (when available), so the list can keep 
+ * querying the last committed data while the service is writing a sync.</p>
  * 
  * @author Juan Gomez
  * @version 1.0.0
@@ -34,14 +53,118 @@ public enum TagsDb {
 	public static final String TAG = "TagsDb";
 
 	// Database fields
-	private SQLiteDatabase database;
+	private volatile SQLiteDatabase database;
 	private DatabaseHelper dbHelper;
+	// Used to notify the URIs of the lists that changed
+	private volatile Context appContext;
+
+	// Time we keep the connection open after the last holder releases it
+	static final long IDLE_TIMEOUT_MS = 30 * 1000;
+
+	// Number of components (activity, fragments, service) currently holding the database
+	private int holders;
+	private Handler handler;
+	private final Runnable idleClose = new Runnable() {
+		@Override
+		public void run() {
+			closeIfIdle();
+		}
+	};
+
+	// In-memory index of the hierarchy, used to answer reads without querying SQLite
+	private final TagTree tree = new TagTree();
+
+	// Tags a sync left alone because they had operations on the outbox, and that weren't
+	// fetched again since. The service may have changes of them we don't have
+	private final Set<String> skippedBySync = new HashSet<String>();
+
+	// Only one thread loads the index, the others wait for it
+	private final Object treeLoadLock = new Object();
+	// Set while a background load of the index is queued or running
+	private boolean treeLoadQueued;
+
+	// Runs the work that is too slow for the thread acquiring the database (which is 
+	// usually the main thread), one task at a time
+	private ExecutorService background;
+
+	// Loads the index in the background, holding the database until it's done
+	private final Runnable treeLoader = new Runnable() {
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			try {
+				ensureTree();
+			} catch (Exception e) {
+				Log.e(TAG, "Couldn't load the Tag index", e);
+			} finally {
+				synchronized (TagsDb.this) {
+					treeLoadQueued = false;
+				}
+				release();
+			}
+		}
+	};
+
+	// Lets the sync diff read the Evernote tags
+	private static final TagDiff.Accessor<Tag> TAG_ACCESSOR = new TagDiff.Accessor<Tag>() {
+		@Override
+		public String getGuid(Tag tag) {
+			return tag.getGuid();
+		}
+
+		@Override
+		public int getUpdateSequenceNum(Tag tag) {
+			return tag.getUpdateSequenceNum();
+		}
+	};
+
+	// Above this number of touched levels we notify every list at once
+	static final int NOTIFY_LEVELS_LIMIT = 32;
+
+	// Locale the stored sort keys were built for, once we've checked it
+	private volatile String sortKeyLocale;
+	// Set while a background check (and rebuild) of the sort keys is queued or running
+	private boolean sortKeysQueued;
+
+	// Key of the sort keys locale on the metadata table
+	static final String KEY_SORT_KEY_LOCALE = "sortKeyLocale";
+
+	// Number of rows whose sort key is rebuilt on each transaction, so other writes 
+	// can get in between
+	static final int SORT_KEYS_BATCH_SIZE = 500;
+
+	// Rebuilds the sort keys in the background, holding the database until it's done
+	private final Runnable sortKeysUpdater = new Runnable() {
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			try {
+				updateSortKeys();
+			} catch (Exception e) {
+				Log.e(TAG, "Couldn't rebuild the sort keys", e);
+			} finally {
+				synchronized (TagsDb.this) {
+					sortKeysQueued = false;
+				}
+				release();
+			}
+		}
+	};
+
+	// Number of rows written by each insert statement on bulk writes
+	private volatile int writeBatchSize = TagBatchWriter.DEFAULT_BATCH_SIZE;
+
+	// Compiled statements for the open database, created on the first write and 
+	// closed along with the connection
+	private TagBatchWriter writer;
+	private int writerBatchSize;
 
 	// These are the Tag rows that we will retrieve
 	static final String[] PROJECTION = { DatabaseHelper.COLUMN_ID,
 		DatabaseHelper.COLUMN_GUID, DatabaseHelper.COLUMN_NAME,
 		DatabaseHelper.COLUMN_PARENT_GUID,
-		DatabaseHelper.COLUMN_UPDATE_SEQ_NUM };
+		DatabaseHelper.COLUMN_UPDATE_SEQ_NUM, DatabaseHelper.COLUMN_PATH,
+		DatabaseHelper.COLUMN_DEPTH };
 
 	// This is the select criteria for all the top level tags (childless tags)
 	static final String SELECTION_TOP_LEVEL = "(" + DatabaseHelper.COLUMN_PARENT_GUID + " IS NULL)";
@@ -52,37 +175,421 @@ public enum TagsDb {
 	// This is the select criteria to obtain all the children of a tag
 	static final String SELECTION_HAS_CHILDREN = "(" + DatabaseHelper.COLUMN_PARENT_GUID + " = ?)";
 
-	// This is the sorting criteria
-	static final String sortOrder = DatabaseHelper.COLUMN_NAME + " COLLATE LOCALIZED ASC";
+	// These are the columns of the parent picker rows
+	static final String[] PROJECTION_SPINNER = { DatabaseHelper.COLUMN_ID,
+		DatabaseHelper.COLUMN_GUID, DatabaseHelper.COLUMN_NAME };
+
+	// Temporary table with the Guids received during a full sync
+	static final String TABLE_SYNC_SEEN = "temp.sync_seen";
+
+	// This is the sorting criteria, the stored collation key of the name (see SortKeys)
+	static final String sortOrder = DatabaseHelper.COLUMN_SORT_KEY + " ASC";
+
+	// Extra columns returned by the level queries, with the number of children of each tag
+	// and a comma separated (and truncated) list of their names
+	public static final String COLUMN_CHILD_COUNT = "childCount";
+	public static final String COLUMN_CHILD_NAMES = "childNames";
+
+	// Maximum length of the child names summary, longer summaries get ellipsized by the list anyway
+	static final int CHILD_NAMES_LENGTH = 120;
+
+	// Most names that can fit on the summary (a one letter name and its separator take 3 characters)
+	static final int CHILD_NAMES_LIMIT = CHILD_NAMES_LENGTH / 3;
+
+	// Columns of the list, with the child information of each tag computed by SQLite 
+	// using the parentGuid index, so the list doesn't need to query per row.
+	// group_concat() takes the rows in whatever order it gets them, so the names come 
+	// from a subquery sorted like the lists are
+	static final String QUERY_LIST_COLUMNS = "SELECT t." + DatabaseHelper.COLUMN_ID
+			+ ", t." + DatabaseHelper.COLUMN_GUID
+			+ ", t." + DatabaseHelper.COLUMN_NAME
+			+ ", t." + DatabaseHelper.COLUMN_PARENT_GUID
+			+ ", t." + DatabaseHelper.COLUMN_UPDATE_SEQ_NUM
+			+ ", t." + DatabaseHelper.COLUMN_PENDING
+			+ ", t." + DatabaseHelper.COLUMN_PATH
+			+ ", t." + DatabaseHelper.COLUMN_DEPTH
+			+ ", (SELECT COUNT(*) FROM " + DatabaseHelper.TABLE_TAGS + " c WHERE c." 
+			+ DatabaseHelper.COLUMN_PARENT_GUID + " = t." + DatabaseHelper.COLUMN_GUID + ") AS " + COLUMN_CHILD_COUNT
+			+ ", (SELECT substr(group_concat(" + DatabaseHelper.COLUMN_NAME + ", ', '), 1, " + CHILD_NAMES_LENGTH 
+			+ ") FROM (SELECT c." + DatabaseHelper.COLUMN_NAME + " FROM " + DatabaseHelper.TABLE_TAGS + " c WHERE c." 
+			+ DatabaseHelper.COLUMN_PARENT_GUID + " = t." + DatabaseHelper.COLUMN_GUID + " ORDER BY c." 
+			+ DatabaseHelper.COLUMN_SORT_KEY + " LIMIT " + CHILD_NAMES_LIMIT + ")) AS " + COLUMN_CHILD_NAMES;
+
+	// This query returns one level of the hierarchy
+	static final String QUERY_LEVEL = QUERY_LIST_COLUMNS
+			+ " FROM " + DatabaseHelper.TABLE_TAGS + " t WHERE %s ORDER BY t." + sortOrder;
+
+	// Extra column returned by the search, with the names of the ancestors of each tag ("Top / Child")
+	public static final String COLUMN_ANCESTRY = "ancestry";
+
+	// Maximum number of search results, nobody scrolls past them
+	static final int SEARCH_LIMIT = 100;
+
+	// This query returns the tags with a word starting with each of the searched words, using the 
+	// full text index. A name equal to the search comes first, then names starting with it, 
+	// then the rest. Shallower tags go first within each group
+	static final String QUERY_SEARCH = QUERY_LIST_COLUMNS
+			+ " FROM " + DatabaseHelper.TABLE_TAGS_FTS + " JOIN " + DatabaseHelper.TABLE_TAGS + " t ON t." 
+			+ DatabaseHelper.COLUMN_ID + " = " + DatabaseHelper.TABLE_TAGS_FTS + ".docid WHERE " 
+			+ DatabaseHelper.TABLE_TAGS_FTS + " MATCH ? ORDER BY CASE WHEN t." + DatabaseHelper.COLUMN_NAME 
+			+ " LIKE ? ESCAPE '\\' THEN 0 WHEN t." + DatabaseHelper.COLUMN_NAME + " LIKE ? ESCAPE '\\' THEN 1 ELSE 2 END, t." 
+			+ DatabaseHelper.COLUMN_DEPTH + ", t." + sortOrder + " LIMIT " + SEARCH_LIMIT;
+
+	// Operations stored on the outbox, they match the names of the sync service tasks
+	public static final String OP_CREATE = "CREATE";
+	public static final String OP_UPDATE = "UPDATE";
+	public static final String OP_DELETE = "DELETE";
+
+	// Guids of the tags with operations on the outbox
+	static final String QUERY_PENDING_GUIDS = "SELECT " + DatabaseHelper.COLUMN_GUID + " FROM " 
+			+ DatabaseHelper.TABLE_PENDING_OPS + " WHERE " + DatabaseHelper.COLUMN_GUID + " IS NOT NULL";
+
+	// Clears the pending flag of a tag once its last outbox operation is gone
+	static final String UPDATE_PENDING_FLAG = "UPDATE " + DatabaseHelper.TABLE_TAGS + " SET " 
+			+ DatabaseHelper.COLUMN_PENDING + " = EXISTS (SELECT 1 FROM " + DatabaseHelper.TABLE_PENDING_OPS 
+			+ " WHERE " + DatabaseHelper.COLUMN_GUID + " = ?) WHERE " + DatabaseHelper.COLUMN_GUID + " = ?";
 
 	/**
-	 * Opens the database connection to the Local Tags DB.
+	 * Acquire the database connection to the Local Tags DB, opening it if needed.
+	 * <p>Every component that uses the database (activity, fragments and service) acquires
+	 * it when it starts using it and calls {@link #release()} when it's done, so that one 
+	 * component can't close the connection while another one is still using it.</p>
 	 * 
 	 */
-	public void open(Context context) throws SQLException {
-		if (dbHelper == null)
-			dbHelper = new DatabaseHelper(context);
-		database = dbHelper.getWritableDatabase();
+	public synchronized void acquire(Context context) throws SQLException {
+		if (handler == null)
+			handler = new Handler(Looper.getMainLooper());
+		// if we were about to close the connection, we keep it instead
+		handler.removeCallbacks(idleClose);
+		if (dbHelper == null) {
+			appContext = context.getApplicationContext();
+			dbHelper = new DatabaseHelper(appContext);
+		}
+		if (database == null || !database.isOpen()) {
+			// statements compiled for a connection that is gone can't be reused
+			closeWriter();
+			database = dbHelper.getWritableDatabase();
+		}
+		// the index survives closing the database, since every write goes through this class.
+		// Loading it reads every tag, so it happens in the background
+		if (!tree.isBuilt() && !treeLoadQueued) {
+			treeLoadQueued = true;
+			runInBackground(treeLoader);
+		}
+		// the locale may have changed since the last time (the activity gets recreated when it does),
+		// the keys are checked and rebuilt in the background too
+		if (!SortKeys.getLocaleName().equals(sortKeyLocale) && !sortKeysQueued) {
+			sortKeysQueued = true;
+			runInBackground(sortKeysUpdater);
+		}
+		holders++;
 	}
 
 	/**
-	 * Calls {@link DatabaseHelper#close()} which in turn closes the database connection.
+	 * Run a task on the background thread. The task holds the database, so it must
+	 * call {@link #release()} once it's done.
 	 * 
 	 */
-	public void close() {
-		if (dbHelper != null)
+	private synchronized void runInBackground(Runnable task) {
+		if (background == null)
+			background = Executors.newSingleThreadExecutor();
+		holders++;
+		background.execute(task);
+	}
+
+	/**
+	 * Release a connection obtained with {@link #acquire(Context)}.
+	 * <p>Once every holder has released it, the connection is closed after 
+	 * {@link #IDLE_TIMEOUT_MS}, unless somebody acquires it again before that.</p>
+	 * 
+	 */
+	public synchronized void release() {
+		if (holders == 0) {
+			Log.w(TAG, "release() called without a matching acquire()");
+			return;
+		}
+		if (--holders == 0)
+			handler.postDelayed(idleClose, IDLE_TIMEOUT_MS);
+	}
+
+	/**
+	 * Calls {@link DatabaseHelper#close()} which in turn closes the database connection,
+	 * if nobody acquired it during the idle timeout.
+	 * 
+	 */
+	private synchronized void closeIfIdle() {
+		if (holders == 0 && dbHelper != null) {
+			closeWriter();
 			dbHelper.close();
+			database = null;
+		}
+	}
+
+	/**
+	 * Obtain the writer of the open database, compiling its statements as they are needed.
+	 * <p>It has to be used inside a write transaction, which keeps the threads from 
+	 * using it at the same time. If the transaction fails, the caller must call 
+	 * {@link TagBatchWriter#discard()} before ending it.</p>
+	 * 
+	 */
+	private synchronized TagBatchWriter getWriter() {
+		int batchSize = writeBatchSize;
+		// the batch size is part of the compiled insert, so changing it means a new writer
+		if (writer != null && writerBatchSize != batchSize)
+			closeWriter();
+		if (writer == null) {
+			writer = new TagBatchWriter(database, batchSize);
+			writerBatchSize = batchSize;
+		}
+		return writer;
+	}
+
+	/**
+	 * Close the statements of the writer, if there's one.
+	 * 
+	 */
+	private synchronized void closeWriter() {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+	}
+
+	/**
+	 * Start a write transaction.
+	 * <p>When the database uses write-ahead logging we start it in IMMEDIATE mode, 
+	 * so that other threads can keep reading while we write.</p>
+	 * 
+	 */
+	private void beginWrite() {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+			database.beginTransactionNonExclusive();
+		else
+			database.beginTransaction();
+	}
+
+	/**
+	 * Make sure the in-memory index is built, loading it on this thread if the background 
+	 * load didn't get to it yet (or waiting for the background load to finish).
+	 * <p>Loading takes a write transaction, so this has to be called before starting 
+	 * one, never inside one.</p>
+	 * 
+	 */
+	private void ensureTree() {
+		if (tree.isBuilt())
+			return;
+		synchronized (treeLoadLock) {
+			if (!tree.isBuilt())
+				loadTree();
+		}
+	}
+
+	/**
+	 * Build the in-memory index of the hierarchy from the Tags table.
+	 * <p>The tags are read inside a write transaction, so no other write can change 
+	 * the table (or the index) between reading it and building the index.</p>
+	 * 
+	 */
+	private void loadTree() {
+		List<TagTree.Node> all = new ArrayList<TagTree.Node>();
+		beginWrite();
+		try {
+			Cursor cursor = database.query(DatabaseHelper.TABLE_TAGS, PROJECTION, 
+					null, null, null, null, null);
+			try {
+				int guidIndex = cursor.getColumnIndex(DatabaseHelper.COLUMN_GUID);
+				int nameIndex = cursor.getColumnIndex(DatabaseHelper.COLUMN_NAME);
+				int parentIndex = cursor.getColumnIndex(DatabaseHelper.COLUMN_PARENT_GUID);
+				int usnIndex = cursor.getColumnIndex(DatabaseHelper.COLUMN_UPDATE_SEQ_NUM);
+				int pathIndex = cursor.getColumnIndex(DatabaseHelper.COLUMN_PATH);
+				int depthIndex = cursor.getColumnIndex(DatabaseHelper.COLUMN_DEPTH);
+				while (cursor.moveToNext()) {
+					TagTree.Node node = new TagTree.Node(cursor.getString(guidIndex), cursor.getString(nameIndex), 
+							cursor.getString(parentIndex), cursor.getInt(usnIndex));
+					node.path = cursor.getString(pathIndex);
+					node.depth = cursor.getInt(depthIndex);
+					all.add(node);
+				}
+			} finally {
+				cursor.close();
+			}
+			tree.build(all);
+			// the stored ancestry is rewritten where it doesn't match the hierarchy (after an upgrade)
+			TagBatchWriter writer = getWriter();
+			try {
+				storeAncestry(writer);
+			} catch (Exception e) {
+				// the index is right anyway, the next load tries again
+				Log.e(TAG, "Couldn't store the Tag ancestry", e);
+			} finally {
+				writer.discard();
+			}
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+		}
+		// every list may have changed
+		notifyChange(TagsProvider.CONTENT_URI);
+	}
+
+	/**
+	 * Load the in-memory index again, after a write that changed it failed to commit.
+	 * If the database can't be read either, the index is left empty and the next 
+	 * read tries again.
+	 * 
+	 */
+	private void reloadTree() {
+		synchronized (treeLoadLock) {
+			tree.clear();
+			try {
+				loadTree();
+			} catch (Exception e) {
+				tree.clear();
+				Log.e(TAG, "Couldn't load the Tag index", e);
+			}
+		}
+	}
+
+	/**
+	 * Rebuild the stored sort keys if they were built for a different locale than the current one.
+	 * <p>Keys of different locales can't be compared, so we rewrite every one of them, 
+	 * which only happens after the user changes the language of the device. It runs on the 
+	 * background thread, {@link #SORT_KEYS_BATCH_SIZE} rows per transaction. Tags written 
+	 * in the meantime already get keys of the current locale.</p>
+	 * 
+	 */
+	private void updateSortKeys() {
+		String locale = SortKeys.getLocaleName();
+		if (locale.equals(sortKeyLocale))
+			return;
+		if (locale.equals(getMetadata(KEY_SORT_KEY_LOCALE))) {
+			sortKeyLocale = locale;
+			return;
+		}
+		SQLiteStatement statement = database.compileStatement("UPDATE " + DatabaseHelper.TABLE_TAGS + " SET " 
+				+ DatabaseHelper.COLUMN_SORT_KEY + " = ? WHERE " + DatabaseHelper.COLUMN_ID + " = ?");
+		try {
+			long lastId = -1;
+			int count;
+			do {
+				count = 0;
+				beginWrite();
+				Cursor cursor = null;
+				try {
+					cursor = database.query(DatabaseHelper.TABLE_TAGS, new String[] { DatabaseHelper.COLUMN_ID, 
+							DatabaseHelper.COLUMN_NAME }, DatabaseHelper.COLUMN_ID + " > ?", 
+							new String[] { String.valueOf(lastId) }, null, null, DatabaseHelper.COLUMN_ID + " ASC", 
+							String.valueOf(SORT_KEYS_BATCH_SIZE));
+					while (cursor.moveToNext()) {
+						lastId = cursor.getLong(0);
+						statement.bindBlob(1, SortKeys.of(cursor.getString(1)));
+						statement.bindLong(2, lastId);
+						statement.execute();
+						count++;
+					}
+					if (count < SORT_KEYS_BATCH_SIZE) {
+						// the last batch records that the keys are done
+						ContentValues values = new ContentValues();
+						values.put(DatabaseHelper.COLUMN_KEY, KEY_SORT_KEY_LOCALE);
+						values.put(DatabaseHelper.COLUMN_VALUE, locale);
+						database.insertWithOnConflict(DatabaseHelper.TABLE_METADATA, null, values, 
+								SQLiteDatabase.CONFLICT_REPLACE);
+					}
+					database.setTransactionSuccessful();
+				} finally {
+					if (cursor != null)
+						cursor.close();
+					database.endTransaction();
+				}
+			} while (count == SORT_KEYS_BATCH_SIZE);
+			sortKeyLocale = locale;
+		} finally {
+			statement.close();
+		}
+		// the order of every list changed
+		notifyChange(TagsProvider.CONTENT_URI);
+	}
+
+	/**
+	 * Obtain a value from the metadata table.
+	 * @returns the value, or null if there's none.
+	 * 
+	 */
+	private String getMetadata(String key) {
+		Cursor cursor = database.query(DatabaseHelper.TABLE_METADATA, new String[] { DatabaseHelper.COLUMN_VALUE },
+				DatabaseHelper.COLUMN_KEY + " = ?", new String[] { key }, null, null, null);
+		try {
+			return cursor.moveToFirst() ? cursor.getString(0) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Let the lists showing the levels touched by a committed write know.
+	 * 
+	 */
+	private void treeChanged() {
+		List<String> levels = tree.drainTouchedLevels();
+		if (levels.isEmpty())
+			return;
+		if (levels.size() > NOTIFY_LEVELS_LIMIT) {
+			// a big sync touches most of the hierarchy, one notification reaches every list
+			notifyChange(TagsProvider.CONTENT_URI);
+			return;
+		}
+		for (String parentGuid : levels) {
+			notifyChange(TagsProvider.getLevelUri(parentGuid));
+		}
+		// any change can add or remove search results
+		notifyChange(TagsProvider.SEARCH_URI);
+	}
+
+	/**
+	 * Notify the observers of a {@link TagsProvider} URI.
+	 * 
+	 */
+	private void notifyChange(Uri uri) {
+		Context context = appContext;
+		if (context != null)
+			context.getContentResolver().notifyChange(uri, null);
+	}
+
+	/**
+	 * Write the path and depth of the tags whose position on the hierarchy changed.
+	 * <p>The index works out the ancestry of every tag, whatever the order in which
+	 * the tags (and their parents) are written, so the index is updated inside the write 
+	 * transaction and what it computed is stored with the rows. If the transaction 
+	 * fails, the index gets reloaded with {@link #reloadTree()}.</p>
+	 * 
+	 */
+	private void storeAncestry(TagBatchWriter writer) {
+		for (TagTree.Node node : tree.drainChanged()) {
+			writer.setAncestry(node.guid, node.path, node.depth);
+		}
+	}
+
+	/**
+	 * Set the number of rows written by each insert statement when storing tags in bulk.
+	 * <p>Larger batches mean fewer statement executions, but SQLite caps how many rows
+	 * fit on a single statement, so big values get capped.</p>
+	 * @param	batchSize	the number of rows per batch, 1 to write each row on its own.
+	 * 
+	 */
+	public void setWriteBatchSize(int batchSize) {
+		writeBatchSize = batchSize;
 	}
 
 	/**
 	 * Obtain a cursor with all the top level (childless) tags.
+	 * <p>Besides the {@link #PROJECTION} columns, every row includes {@link #COLUMN_CHILD_COUNT} 
+	 * and {@link #COLUMN_CHILD_NAMES}.</p>
 	 * @returns {@link Cursor}
 	 * 
 	 */
 	public Cursor getTopLevelTags() {
 		//  This method is used by the ListFragment to display the first list of tags
-		Cursor topLevel = database.query(DatabaseHelper.TABLE_TAGS, PROJECTION,
-				SELECTION_TOP_LEVEL, null, null, null, sortOrder);
+		Cursor topLevel = database.rawQuery(String.format(QUERY_LEVEL, SELECTION_TOP_LEVEL), null);
 
 		return topLevel;
 
@@ -90,210 +597,985 @@ public enum TagsDb {
 
 	/**
 	 * Obtain a cursor with all the children of a specific Parent tag.
+	 * <p>Besides the {@link #PROJECTION} columns, every row includes {@link #COLUMN_CHILD_COUNT} 
+	 * and {@link #COLUMN_CHILD_NAMES}.</p>
 	 * @param	guid	A string representing the Guid of the Parent Tag.
 	 * @returns {@link Cursor}
 	 * 
 	 */
 	public Cursor getChildTags(String guid) {
-		// Get a cursor with all the children of a tag. This is used to determine the 
-		// row type and to display a tag's children
-		Cursor topLevel = database.query(DatabaseHelper.TABLE_TAGS, PROJECTION,
-				SELECTION_HAS_CHILDREN, new String[] { guid }, null, null, sortOrder);
+		// Get a cursor with all the children of a tag. This is used to display a tag's children
+		Cursor topLevel = database.rawQuery(String.format(QUERY_LEVEL, SELECTION_HAS_CHILDREN), 
+				new String[] { guid });
 
 		return topLevel;
 
 	}
 
+	/**
+	 * Search the tags by name. Every word of the query has to be the beginning of a word of the name,
+	 * so "wo pro" finds "Work Projects".
+	 * <p>Besides the {@link #PROJECTION} columns, every row includes {@link #COLUMN_CHILD_COUNT}, 
+	 * {@link #COLUMN_CHILD_NAMES} and {@link #COLUMN_ANCESTRY}. The best matches come first, 
+	 * and there's at most {@link #SEARCH_LIMIT} rows.</p>
+	 * @param	query	The text typed by the user.
+	 * @returns {@link Cursor}
+	 * 
+	 */
+	public Cursor searchTags(CharSequence query) {
+		String match = toMatchQuery(query);
+		Cursor found;
+		if (match != null) {
+			String name = escapeLike(query.toString().trim());
+			found = database.rawQuery(QUERY_SEARCH, new String[] { match, name, name + "%" });
+		} else {
+			// nothing to search for, but the list still expects the same columns
+			found = database.rawQuery(String.format(QUERY_LEVEL, "0"), null);
+		}
+		try {
+			// the ancestry comes from the in-memory index, the path only holds Guids
+			String[] columns = new String[found.getColumnCount() + 1];
+			System.arraycopy(found.getColumnNames(), 0, columns, 0, columns.length - 1);
+			columns[columns.length - 1] = COLUMN_ANCESTRY;
+			MatrixCursor results = new MatrixCursor(columns, found.getCount());
+			int guidIndex = found.getColumnIndex(DatabaseHelper.COLUMN_GUID);
+			while (found.moveToNext()) {
+				Object[] row = new Object[columns.length];
+				for (int i = 0; i < row.length - 1; i++) {
+					row[i] = found.getString(i);
+				}
+				row[row.length - 1] = getAncestry(found.getString(guidIndex));
+				results.addRow(row);
+			}
+			return results;
+		} finally {
+			found.close();
+		}
+	}
+
+	/**
+	 * Turn the text typed by the user into a full text query, with a prefix search for each word.
+	 * The simple tokenizer splits names on anything that isn't a letter or a digit, so we do the same.
+	 * @returns the query, or null if there's no word to search for.
+	 * 
+	 */
+	static String toMatchQuery(CharSequence query) {
+		if (query == null)
+			return null;
+		StringBuilder match = new StringBuilder();
+		int length = query.length();
+		int i = 0;
+		while (i < length) {
+			while (i < length && !Character.isLetterOrDigit(query.charAt(i))) {
+				i++;
+			}
+			int start = i;
+			while (i < length && Character.isLetterOrDigit(query.charAt(i))) {
+				i++;
+			}
+			if (i > start) {
+				if (match.length() > 0)
+					match.append(' ');
+				match.append(query, start, i).append('*');
+			}
+		}
+		return (match.length() > 0) ? match.toString() : null;
+	}
+
+	/**
+	 * Escape the wildcards of a LIKE pattern, to be used with ESCAPE '\'.
+	 * 
+	 */
+	static String escapeLike(String text) {
+		return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+	}
+
+	/**
+	 * Obtain the names of the ancestors of a tag, as shown on the header of the list ("Top / Child").
+	 * @param	guid	A string representing the Guid of the Tag.
+	 * @returns the names, or an empty string for a top level tag.
+	 * 
+	 */
+	public String getAncestry(String guid) {
+		ensureTree();
+		StringBuilder sb = new StringBuilder();
+		for (TagTree.Node node : tree.getAncestors(guid)) {
+			if (sb.length() > 0)
+				sb.append(" / ");
+			sb.append(node.name);
+		}
+		return sb.toString();
+	}
+
 	/**
 	 * Obtain a {@link Tag} by its Guid.
 	 * @param	guid	A string representing the Guid of the requested Tag.
-	 * @returns {@link Tag}
+	 * @returns {@link Tag} or null if there's no tag with that Guid.
 	 * 
 	 */
 	public Tag getTagByGuid(String guid) {
-		// Get an specific tag by Guid
-		Tag tag = null;
-		Cursor cursor = database.query(DatabaseHelper.TABLE_TAGS, PROJECTION,
-				SELECTION, new String[] { guid }, null, null, null);
-		if (cursor != null && cursor.moveToNext()) {
-			tag = new Tag();
-			tag.setName(cursor.getString(cursor.getColumnIndex(DatabaseHelper.COLUMN_NAME)));
-			tag.setParentGuid(cursor.getString(cursor.getColumnIndex(DatabaseHelper.COLUMN_PARENT_GUID)));
-			tag.setGuid(cursor.getString(cursor.getColumnIndex(DatabaseHelper.COLUMN_GUID)));
+		ensureTree();
+		// Get an specific tag by Guid from the in-memory index
+		TagTree.Node node = tree.get(guid);
+		return (node != null) ? toTag(node) : null;
+	}
+
+	/**
+	 * Obtain the ancestors of a tag, starting with its top level ancestor.
+	 * @param	guid	A string representing the Guid of the Tag.
+	 * @returns A {@link List} of {@link Tag} objects, empty for a top level tag.
+	 * 
+	 */
+	public List<Tag> getAncestors(String guid) {
+		ensureTree();
+		List<Tag> ancestors = new ArrayList<Tag>();
+		for (TagTree.Node node : tree.getAncestors(guid)) {
+			ancestors.add(toTag(node));
 		}
-		return tag;
+		return ancestors;
 	}
 
 	/**
-	 * Obtain a list of all the possible parent Tags to display on the spinner widget of the Add/Edit Fragment
-	 * @param	guid	A string representing the Guid of the Tag being modified.
-	 * @param	parentGuid	A string representing the Guid of the current parent Tag 
-	 * (This tag gets returned first on the list).
-	 * @returns A {@link List} of {@link Tag} objects representing possible parent tags.
+	 * Is a tag a descendant (child, grandchild and so on) of another one.
+	 * @param	guid	A string representing the Guid of the Tag.
+	 * @param	ancestorGuid	A string representing the Guid of the possible ancestor.
 	 * 
 	 */
-	public List<Tag> getTagListForSpinner(String guid, String parentGuid) {
+	public boolean isDescendant(String guid, String ancestorGuid) {
+		ensureTree();
+		return tree.isDescendant(guid, ancestorGuid);
+	}
 
-		List<Tag> all = new ArrayList<Tag>();
-		String temp_guid = "";
-		Tag temp_tag = new Tag();
-		Tag emptyTag = new Tag();
-		emptyTag.setName(EMPTY_TAG_LIST_ITEM);
-		Tag parentTag = new Tag();
+	/**
+	 * Obtain the depth of a tag on the hierarchy.
+	 * @param	guid	A string representing the Guid of the Tag.
+	 * @returns 0 for a top level tag, 1 for its children and so on, or -1 if there's no such tag.
+	 * 
+	 */
+	public int getDepth(String guid) {
+		ensureTree();
+		TagTree.Node node = tree.get(guid);
+		return (node != null) ? node.depth : -1;
+	}
 
+	/**
+	 * Obtain all the descendants of a tag (children, grandchildren and so on).
+	 * @param	guid	A string representing the Guid of the Tag.
+	 * @returns A {@link List} of {@link Tag} objects, where every tag comes before its parent.
+	 * 
+	 */
+	public List<Tag> getDescendants(String guid) {
+		ensureTree();
+		List<Tag> descendants = new ArrayList<Tag>();
+		for (TagTree.Node node : tree.getDescendants(guid)) {
+			descendants.add(toTag(node));
+		}
+		return descendants;
+	}
 
-		Cursor cursor = database.query(DatabaseHelper.TABLE_TAGS, PROJECTION,
-				null /* null on the select criteria to get all the tags*/, 
-				null, null, null, sortOrder);
+	/**
+	 * Obtain the number of children of a tag.
+	 * @param	guid	A string representing the Guid of the Parent Tag.
+	 * 
+	 */
+	public int getChildCount(String guid) {
+		ensureTree();
+		return tree.getChildCount(guid);
+	}
+
+	/**
+	 * Obtain a cursor with the possible parent Tags to display on the spinner widget of the Add/Edit Fragment.
+	 * <p>The current parent comes first, followed by the empty tag and every other tag. With a 
+	 * filter, the other tags are only the ones whose name contains it. The parent and the empty 
+	 * tag are always there, so the spinner can keep its selection while the user types.
+	 * Either way the Tag being modified and its subtree (a range of the path index) are left out.</p>
+	 * <p>The rows have the {@link #PROJECTION_SPINNER} columns, the empty tag has a null Guid.</p>
+	 * @param	guid	A string representing the Guid of the Tag being modified (null for a new tag).
+	 * @param	parentGuid	A string representing the Guid of the current parent Tag (may be null).
+	 * @param	filter	The text typed to narrow down the list (may be null).
+	 * @returns {@link Cursor}
+	 * 
+	 */
+	public Cursor getParentCandidates(String guid, String parentGuid, CharSequence filter) {
+		List<String> excludedGuids = (guid != null) ? Collections.singletonList(guid) 
+				: Collections.<String>emptyList();
+		return getParentCandidates(excludedGuids, parentGuid, filter);
+	}
 
-		// We turn the cursor into a list of all the tags, but with the parent tag on 
-		// top (for the spinner) and minus the calling tag to avoid a circular reference
-		while (cursor.moveToNext()) {
-			temp_tag = new Tag();
-			temp_guid = cursor.getString(cursor.getColumnIndex(DatabaseHelper.COLUMN_GUID));
-			// If the tag is the calling tag we don't include it
-			if(temp_guid.equalsIgnoreCase(guid))
-				continue;
-			temp_tag.setGuid(temp_guid);
-			temp_tag.setName(cursor.getString(cursor.getColumnIndex(DatabaseHelper.COLUMN_NAME)));
-			temp_tag.setParentGuid(cursor.getString(cursor.getColumnIndex(DatabaseHelper.COLUMN_PARENT_GUID)));
-			//if the tag is the parent tag, we hold a reference to it but don't include it yet
-			if (parentGuid != null && parentGuid.equalsIgnoreCase(temp_guid))
-				parentTag = temp_tag;
-			else
-				all.add(temp_tag);
+	/**
+	 * Obtain a cursor with the possible parent Tags for several Tags at once, like the ones 
+	 * being moved together. Every one of them and their subtrees are left out.
+	 * @param	excludedGuids	the Guids of the Tags being modified.
+	 * @param	parentGuid	A string representing the Guid of the current parent Tag (may be null).
+	 * @param	filter	The text typed to narrow down the list (may be null).
+	 * @returns {@link Cursor}
+	 * @see #getParentCandidates(String, String, CharSequence)
+	 * 
+	 */
+	public Cursor getParentCandidates(Collection<String> excludedGuids, String parentGuid, CharSequence filter) {
+		ensureTree();
+		StringBuilder selection = new StringBuilder("1");
+		List<String> args = new ArrayList<String>();
+		for (String guid : excludedGuids) {
+			TagTree.Node excluded = tree.get(guid);
+			String path = (excluded != null) ? excluded.path : null;
+			// the bounds go inline, so any number of subtrees fits under SQLite's limit of arguments
+			selection.append(" AND ").append(DatabaseHelper.COLUMN_GUID).append(" <> ");
+			DatabaseUtils.appendEscapedSQLString(selection, guid);
+			if (path != null) {
+				// the subtree is every path from "/.../guid/" up to (not including) "/.../guid0"
+				selection.append(" AND (").append(DatabaseHelper.COLUMN_PATH).append(" IS NULL OR ")
+						.append(DatabaseHelper.COLUMN_PATH).append(" < ");
+				DatabaseUtils.appendEscapedSQLString(selection, path);
+				selection.append(" OR ").append(DatabaseHelper.COLUMN_PATH).append(" >= ");
+				DatabaseUtils.appendEscapedSQLString(selection, TagTree.getSubtreeEnd(path));
+				selection.append(")");
+			}
+		}
+		boolean filtered = !TextUtils.isEmpty(filter);
+		boolean parentFirst = !TextUtils.isEmpty(parentGuid) 
+				&& !parentGuid.equalsIgnoreCase(EMPTY_TAG_LIST_ITEM);
+		if (filtered) {
+			selection.append(" AND ").append(DatabaseHelper.COLUMN_NAME).append(" LIKE ? ESCAPE '\\'");
+			args.add("%" + escapeLike(filter.toString()) + "%");
+		}
+		if (parentFirst) {
+			selection.append(" AND ").append(DatabaseHelper.COLUMN_GUID).append(" <> ?");
+			args.add(parentGuid);
 		}
 
-		// if a parent guid was specified we add that tag first so that it 
-		// displays first on the spinner
-		if (TextUtils.isEmpty(parentGuid)) {
-			all.add(0, emptyTag);
-		} else {
-			all.add(0, parentTag);
-			all.add(1, emptyTag);
+		List<Cursor> cursors = new ArrayList<Cursor>(3);
+		if (parentFirst) {
+			cursors.add(database.query(DatabaseHelper.TABLE_TAGS, PROJECTION_SPINNER, SELECTION, 
+					new String[] { parentGuid }, null, null, null));
 		}
-		// Close the cursor and return the List
-		cursor.close();
-		return all;
+		MatrixCursor emptyTag = new MatrixCursor(PROJECTION_SPINNER, 1);
+		emptyTag.addRow(new Object[] { -1, null, EMPTY_TAG_LIST_ITEM });
+		cursors.add(emptyTag);
+		cursors.add(database.query(DatabaseHelper.TABLE_TAGS, PROJECTION_SPINNER, selection.toString(), 
+				args.toArray(new String[args.size()]), null, null, sortOrder));
+		return new MergeCursor(cursors.toArray(new Cursor[cursors.size()]));
+	}
+
+	/**
+	 * Build a {@link Tag} from a node of the in-memory index.
+	 * 
+	 */
+	private static Tag toTag(TagTree.Node node) {
+		Tag tag = new Tag();
+		tag.setGuid(node.guid);
+		tag.setName(node.name);
+		tag.setParentGuid(node.parentGuid);
+		tag.setUpdateSequenceNum(node.updateSequenceNum);
+		return tag;
 	}
 
 	/**
-	 * Store a list of tags obtained form the Evernote server, on the local database.
-	 * @param	tags	A {@link List} of {@link Tag} objects to be inserted on the local database. 
+	 * Apply an incremental set of changes obtained from the Evernote server to the local database.
+	 * <p>Tags that already exist locally are updated in place, new tags are inserted and
+	 * expunged tags are removed, all inside a single transaction.</p>
+	 * @param	tags	A {@link List} of new or modified {@link Tag} objects (may be null). 
+	 * @param	expungedGuids	A {@link List} of Guids of the tags expunged on the server (may be null). 
+	 * @returns A {@link TagChangeSet} with the Guids that were written, or null if the operation failed.
+	 * 
+	 */
+	public TagChangeSet applyTagChanges(List<Tag> tags, List<String> expungedGuids) {
+		return applyChunk(tags, expungedGuids, false);
+	}
+
+	/**
+	 * Prepare the database for a full sync delivered in chunks.
+	 * <p>A full sync is stored with {@link #applyFullSyncChunk(List)}, one transaction per chunk,
+	 * and completed with {@link #finishFullSync()} which removes every tag that wasn't on any chunk.
+	 * The Guids we receive are tracked on a temporary table, so memory use doesn't depend on 
+	 * the number of tags on the account.</p>
 	 * @returns {@link true} if the operation succeeded.
 	 * 
 	 */
-	public boolean storeRemoteTags(List<Tag> tags) {
+	public boolean beginFullSync() {
+		boolean success = false;
+		// temporary tables belong to a connection, so we always use them inside a transaction
+		// which keeps us on the primary connection
+		beginWrite();
+		try {
+			database.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + TABLE_SYNC_SEEN 
+					+ " (" + DatabaseHelper.COLUMN_GUID + " text primary key)");
+			database.execSQL("DELETE FROM " + TABLE_SYNC_SEEN);
+			database.setTransactionSuccessful();
+			success = true;
+		} catch (Exception e) {
+			Log.e(TAG, "Couldn't start a full sync", e);
+		} finally {
+			database.endTransaction();
+		}
+		return success;
+	}
+
+	/**
+	 * Store a chunk of a full sync started with {@link #beginFullSync()}.
+	 * @param	tags	A {@link List} of {@link Tag} objects on the chunk (may be null). 
+	 * @returns A {@link TagChangeSet} with the Guids that were written, or null if the operation failed.
+	 * 
+	 */
+	public TagChangeSet applyFullSyncChunk(List<Tag> tags) {
+		return applyChunk(tags, null, true);
+	}
 
-		boolean success = true;
+	/**
+	 * Complete a full sync started with {@link #beginFullSync()}, removing all the 
+	 * local tags that weren't received.
+	 * @returns A {@link TagChangeSet} with the Guids that were deleted, or null if the operation failed.
+	 * 
+	 */
+	public TagChangeSet finishFullSync() {
+		ensureTree();
+		TagChangeSet changes = null;
+		beginWrite();
+		TagBatchWriter writer = getWriter();
+		try {
+			TagChangeSet pending = new TagChangeSet();
+			Cursor cursor = database.rawQuery("SELECT " + DatabaseHelper.COLUMN_GUID + " FROM " 
+					+ DatabaseHelper.TABLE_TAGS + " WHERE " + DatabaseHelper.COLUMN_GUID + " NOT IN (SELECT " 
+					+ DatabaseHelper.COLUMN_GUID + " FROM " + TABLE_SYNC_SEEN + ") AND " 
+					+ DatabaseHelper.COLUMN_PENDING + " = 0", null);
+			try {
+				while (cursor.moveToNext()) {
+					pending.addDeleted(cursor.getString(0));
+				}
+			} finally {
+				cursor.close();
+			}
+			for (String guid : pending.getDeleted()) {
+				writer.delete(guid);
+			}
+			database.execSQL("DROP TABLE IF EXISTS " + TABLE_SYNC_SEEN);
+			updateTree(writer, null, pending.getDeleted());
+			database.setTransactionSuccessful();
+			changes = pending;
+		} catch (Exception e) {
+			Log.e(TAG, "Couldn't finish the full sync", e);
+		} finally {
+			writer.discard();
+			database.endTransaction();
+		}
+		if (changes != null)
+			treeChanged();
+		else
+			reloadTree();
+		return changes;
+	}
+
+	/**
+	 * Write a chunk of tags received from the Evernote server in a single transaction.
+	 * @param	tags	A {@link List} of new or modified {@link Tag} objects (may be null). 
+	 * @param	expungedGuids	A {@link List} of Guids of the tags expunged on the server (may be null). 
+	 * @param	markSeen	{@link true} to record the Guids on the full sync table.
+	 * @returns A {@link TagChangeSet} with the Guids that were written, or null if the operation failed.
+	 * 
+	 */
+	private TagChangeSet applyChunk(List<Tag> tags, List<String> expungedGuids, boolean markSeen) {
+		ensureTree();
+
+		TagChangeSet changes = null;
 		if (database.isOpen()) {
-			database.beginTransaction();
+			beginWrite();
+			TagBatchWriter writer = getWriter();
+			SQLiteStatement seenStatement = null;
+			List<Tag> written = new ArrayList<Tag>();
+			Set<String> pendingGuids = null;
 			try {
-				// It's easier to just clean the database and write everything, than 
-				// trying to perform a "true" sync.
-				cleanDb();
-				for (Tag tag : tags) {
-					ContentValues values = new ContentValues();
-					values.put(DatabaseHelper.COLUMN_GUID, tag.getGuid());
-					values.put(DatabaseHelper.COLUMN_NAME, tag.getName());
-					values.put(DatabaseHelper.COLUMN_PARENT_GUID, tag.getParentGuid());
-					values.put(DatabaseHelper.COLUMN_UPDATE_SEQ_NUM, tag.getUpdateSequenceNum());
-					database.insertOrThrow(DatabaseHelper.TABLE_TAGS, null,values);
+				TagChangeSet pending = new TagChangeSet();
+				if (markSeen && tags != null) {
+					seenStatement = database.compileStatement("INSERT OR IGNORE INTO " + TABLE_SYNC_SEEN 
+							+ " (" + DatabaseHelper.COLUMN_GUID + ") VALUES (?)");
+					for (Tag tag : tags) {
+						seenStatement.bindString(1, tag.getGuid());
+						seenStatement.execute();
+					}
 				}
+				// the local version of a tag with operations on the outbox wins until they are sent
+				pendingGuids = getPendingGuids();
+				TagDiff.diffChanges(tree, tags, expungedGuids, pendingGuids, TAG_ACCESSOR, 
+						new DiffWriter(writer, pending, written));
+				writer.flush();
+				updateTree(writer, written, pending.getDeleted());
 				database.setTransactionSuccessful();
+				changes = pending;
 
 			} catch (Exception e) {
-				Log.e(TAG, "Couldn't create Tag database", e);
-				success = false;
+				Log.e(TAG, "Couldn't apply Tag changes", e);
 			} finally {
+				if (seenStatement != null)
+					seenStatement.close();
+				writer.discard();
 				database.endTransaction();
 			}
+			if (changes != null) {
+				recordSkipped(tags, expungedGuids, pendingGuids);
+				treeChanged();
+			} else {
+				reloadTree();
+			}
 		}
-		return success;
+		return changes;
 	}
 
 	/**
-	 * Insert a newly created Tag, after we got a Guid from the Evernote service
-	 * @param	tag	The {@link Tag} object to be inserted on the local database. 
+	 * Keep track of the tags a sync left alone because they were pending, until a 
+	 * later sync (or a fetch of the tag) brings their version from the service.
 	 * 
 	 */
-	public void insertTag(Tag tag) {
-		// 
-		database.beginTransaction();
+	private void recordSkipped(List<Tag> tags, List<String> expungedGuids, Set<String> pendingGuids) {
+		synchronized (skippedBySync) {
+			if (tags != null) {
+				for (Tag tag : tags) {
+					if (pendingGuids.contains(tag.getGuid()))
+						skippedBySync.add(tag.getGuid());
+					else
+						skippedBySync.remove(tag.getGuid());
+				}
+			}
+			if (expungedGuids != null)
+				skippedBySync.removeAll(expungedGuids);
+		}
+	}
+
+	/**
+	 * Find out if a sync left a tag alone while it had operations on the outbox, so the 
+	 * Evernote service may have changes of it we don't have. It stays that way until the
+	 * tag comes again on a sync (or {@link #applyTagChanges(List, List)}) with nothing pending.
+	 * @param	guid	A string representing the Guid of the Tag.
+	 * @returns {@link true} if the tag needs to be fetched again.
+	 * 
+	 */
+	public boolean isSkippedBySync(String guid) {
+		synchronized (skippedBySync) {
+			return skippedBySync.contains(guid);
+		}
+	}
+
+	/**
+	 * Writes the result of a sync diff, recording it on a change set and 
+	 * keeping the written tags for the in-memory index.
+	 * 
+	 */
+	private static final class DiffWriter implements TagDiff.Handler<Tag> {
+		private final TagBatchWriter writer;
+		private final TagChangeSet changes;
+		private final List<Tag> written;
+
+		DiffWriter(TagBatchWriter writer, TagChangeSet changes, List<Tag> written) {
+			this.writer = writer;
+			this.changes = changes;
+			this.written = written;
+		}
+
+		@Override
+		public void insert(Tag tag) {
+			writer.insert(tag);
+			changes.addInserted(tag.getGuid());
+			written.add(tag);
+		}
+
+		@Override
+		public void update(Tag tag) {
+			writer.update(tag);
+			changes.addUpdated(tag.getGuid());
+			written.add(tag);
+		}
+
+		@Override
+		public void delete(String guid) {
+			writer.delete(guid);
+			changes.addDeleted(guid);
+		}
+	}
+
+	/**
+	 * Obtain the Guids of the tags with operations waiting on the outbox.
+	 * 
+	 */
+	private Set<String> getPendingGuids() {
+		Set<String> guids = new HashSet<String>();
+		Cursor cursor = database.rawQuery(QUERY_PENDING_GUIDS, null);
 		try {
-			ContentValues values = new ContentValues();
-			values.put(DatabaseHelper.COLUMN_GUID, tag.getGuid());
-			values.put(DatabaseHelper.COLUMN_NAME, tag.getName());
-			values.put(DatabaseHelper.COLUMN_PARENT_GUID, tag.getParentGuid());
-			values.put(DatabaseHelper.COLUMN_UPDATE_SEQ_NUM,
-					tag.getUpdateSequenceNum());
-			database.insertOrThrow(DatabaseHelper.TABLE_TAGS, null, values);
+			while (cursor.moveToNext()) {
+				guids.add(cursor.getString(0));
+			}
+		} finally {
+			cursor.close();
+		}
+		return guids;
+	}
 
+	/**
+	 * Apply a set of changes to the in-memory index and store the ancestry it worked out, 
+	 * inside the write transaction of the changes.
+	 * @param	written	The {@link Tag} objects that were inserted or updated (may be null).
+	 * @param	deleted	The Guids of the tags that were deleted.
+	 * 
+	 */
+	private void updateTree(TagBatchWriter writer, List<Tag> written, List<String> deleted) {
+		if (written != null) {
+			for (Tag tag : written) {
+				tree.put(tag.getGuid(), tag.getName(), tag.getParentGuid(), tag.getUpdateSequenceNum());
+			}
+		}
+		for (String guid : deleted) {
+			tree.remove(guid);
+		}
+		storeAncestry(writer);
+	}
+
+	/**
+	 * Create a tag locally, before the Evernote service knows about it, and add 
+	 * the operation to the outbox.
+	 * <p>The tag is stored with a provisional Guid and flagged as pending, until 
+	 * {@link #confirmCreate(long, String, Tag)} replaces it with the one from the service.</p>
+	 * @param	localGuid	the provisional Guid of the tag.
+	 * @param	name	the name of the tag.
+	 * @param	parentGuid	the Guid of the parent tag, or null for a top level tag.
+	 * @returns the id of the operation on the outbox, or -1 if it couldn't be stored.
+	 * 
+	 */
+	public long createLocalTag(String localGuid, String name, String parentGuid) {
+		ensureTree();
+		long id = -1;
+		beginWrite();
+		TagBatchWriter writer = getWriter();
+		try {
+			writer.insertLocal(localGuid, name, parentGuid);
+			id = insertPendingOperation(OP_CREATE, localGuid, name, parentGuid != null, parentGuid, null);
+			tree.put(localGuid, name, parentGuid, 0);
+			storeAncestry(writer);
 			database.setTransactionSuccessful();
+		} catch (Exception e) {
+			Log.e(TAG, "Couldn't create local Tag", e);
+			id = -1;
+		} finally {
+			writer.discard();
+			database.endTransaction();
+		}
+		if (id >= 0)
+			treeChanged();
+		else
+			reloadTree();
+		return id;
+	}
 
+	/**
+	 * Update a tag locally and add the operation to the outbox.
+	 * @param	guid	the Guid of the tag.
+	 * @param	name	the new name of the tag, or null to keep the current one.
+	 * @param	hasParent	{@link true} if the parent of the tag changes.
+	 * @param	parentGuid	the Guid of the new parent tag, or null to make it a top level tag.
+	 * @param	currentParentGuid	the Guid of the parent the tag had before the update.
+	 * @returns the id of the operation on the outbox, or -1 if it couldn't be stored.
+	 * 
+	 */
+	public long updateLocalTag(String guid, String name, boolean hasParent, String parentGuid, 
+			String currentParentGuid) {
+		ensureTree();
+		long id = -1;
+		beginWrite();
+		TagBatchWriter writer = getWriter();
+		try {
+			TagTree.Node node = tree.get(guid);
+			writer.updateLocal(guid, name, hasParent, parentGuid);
+			id = insertPendingOperation(OP_UPDATE, guid, name, hasParent, parentGuid, currentParentGuid);
+			if (node != null) {
+				tree.put(guid, (name != null) ? name : node.name, hasParent ? parentGuid : node.parentGuid, 
+						node.updateSequenceNum);
+				storeAncestry(writer);
+			}
+			database.setTransactionSuccessful();
 		} catch (Exception e) {
-			Log.e(TAG, "Couldn't insert Tag", e);
+			Log.e(TAG, "Couldn't update local Tag", e);
+			id = -1;
 		} finally {
+			writer.discard();
 			database.endTransaction();
 		}
+		if (id >= 0)
+			treeChanged();
+		else
+			reloadTree();
+		return id;
 	}
 
 	/**
-	 * Delete a tag from the local DB.
-	 * @param	guid	a string representing the Guid of the Tag to be deleted.
+	 * Delete a tag locally and add the operation to the outbox.
+	 * @param	guid	the Guid of the tag.
+	 * @param	currentParentGuid	the Guid of the parent the tag had.
+	 * @returns the id of the operation on the outbox, or -1 if it couldn't be stored.
 	 * 
 	 */
-	public void deleteTag(String guid) {
-		// 
-		database.beginTransaction();
+	public long deleteLocalTag(String guid, String currentParentGuid) {
+		ensureTree();
+		long id = -1;
+		beginWrite();
+		TagBatchWriter writer = getWriter();
 		try {
-			database.delete(DatabaseHelper.TABLE_TAGS, SELECTION, new String[] { guid });
+			writer.delete(guid);
+			id = insertPendingOperation(OP_DELETE, guid, null, false, null, currentParentGuid);
+			tree.remove(guid);
+			storeAncestry(writer);
+			database.setTransactionSuccessful();
+		} catch (Exception e) {
+			Log.e(TAG, "Couldn't delete local Tag", e);
+			id = -1;
+		} finally {
+			writer.discard();
+			database.endTransaction();
+		}
+		if (id >= 0)
+			treeChanged();
+		else
+			reloadTree();
+		return id;
+	}
+
+	/**
+	 * Delete several tags locally in a single transaction, and add one operation per tag 
+	 * to the outbox.
+	 * @param	tags	the {@link Tag} objects to delete, with their current parent.
+	 * @returns the ids of the operations on the outbox (in the same order as the tags), 
+	 * or null if they couldn't be stored.
+	 * 
+	 */
+	public long[] deleteLocalTags(List<Tag> tags) {
+		ensureTree();
+		long[] ids = new long[tags.size()];
+		boolean success = false;
+		beginWrite();
+		TagBatchWriter writer = getWriter();
+		try {
+			for (int i = 0; i < ids.length; i++) {
+				Tag tag = tags.get(i);
+				writer.delete(tag.getGuid());
+				ids[i] = insertPendingOperation(OP_DELETE, tag.getGuid(), null, false, null, tag.getParentGuid());
+				tree.remove(tag.getGuid());
+			}
+			storeAncestry(writer);
 			database.setTransactionSuccessful();
+			success = true;
 		} catch (Exception e) {
-			Log.e(TAG, "Couldn't delete Tag", e);
+			Log.e(TAG, "Couldn't delete local Tags", e);
 		} finally {
+			writer.discard();
 			database.endTransaction();
 		}
+		if (!success) {
+			reloadTree();
+			return null;
+		}
+		treeChanged();
+		return ids;
 	}
 
 	/**
-	 * Update a tag in the local db, after we received an UpdateSequenceNum from the Evernote server
-	 * @param	tag	a {@link Tag} object containing the information to be updated 
+	 * Move several tags under a new parent locally in a single transaction, and add one 
+	 * operation per tag to the outbox.
+	 * @param	tags	the {@link Tag} objects to move, with their current name and parent.
+	 * @param	parentGuid	the Guid of the new parent tag, or null to make them top level tags.
+	 * @returns the ids of the operations on the outbox (in the same order as the tags), 
+	 * or null if they couldn't be stored.
 	 * 
 	 */
-	public void updateTag(Tag tag) {
-		database.beginTransaction();
+	public long[] moveLocalTags(List<Tag> tags, String parentGuid) {
+		ensureTree();
+		long[] ids = new long[tags.size()];
+		boolean success = false;
+		beginWrite();
+		TagBatchWriter writer = getWriter();
 		try {
-			ContentValues values = new ContentValues();
-			values.put(DatabaseHelper.COLUMN_GUID, tag.getGuid());
-			values.put(DatabaseHelper.COLUMN_NAME, tag.getName());
-			values.put(DatabaseHelper.COLUMN_PARENT_GUID, tag.getParentGuid());
-			values.put(DatabaseHelper.COLUMN_UPDATE_SEQ_NUM, tag.getUpdateSequenceNum());
-			database.update(DatabaseHelper.TABLE_TAGS, values, SELECTION, new String[] { tag.getGuid() });
+			for (int i = 0; i < ids.length; i++) {
+				Tag tag = tags.get(i);
+				writer.move(tag.getGuid(), parentGuid);
+				ids[i] = insertPendingOperation(OP_UPDATE, tag.getGuid(), tag.getName(), true, parentGuid, 
+						tag.getParentGuid());
+				tree.put(tag.getGuid(), tag.getName(), parentGuid, tag.getUpdateSequenceNum());
+			}
+			storeAncestry(writer);
 			database.setTransactionSuccessful();
+			success = true;
+		} catch (Exception e) {
+			Log.e(TAG, "Couldn't move local Tags", e);
+		} finally {
+			writer.discard();
+			database.endTransaction();
+		}
+		if (!success) {
+			reloadTree();
+			return null;
+		}
+		treeChanged();
+		return ids;
+	}
+
+	/**
+	 * Add an operation to the outbox, the caller is responsible for the transaction.
+	 * 
+	 */
+	private long insertPendingOperation(String task, String guid, String name, boolean hasParent, 
+			String parentGuid, String currentParentGuid) {
+		return getWriter().insertOperation(task, guid, name, hasParent, parentGuid, currentParentGuid);
+	}
+
+	/**
+	 * Obtain a cursor with every operation on the outbox, in the order they were made.
+	 * @returns {@link Cursor}
+	 * 
+	 */
+	public Cursor getPendingOperations() {
+		return database.query(DatabaseHelper.TABLE_PENDING_OPS, null, null, null, null, null, 
+				DatabaseHelper.COLUMN_ID + " ASC");
+	}
 
+	/**
+	 * Rewrite an update on the outbox, after earlier updates of the same tag were folded into it.
+	 * @param	id	the id of the operation on the outbox.
+	 * 
+	 */
+	public void updatePendingOperation(long id, String name, boolean hasParent, String parentGuid, 
+			String currentParentGuid) {
+		beginWrite();
+		TagBatchWriter writer = getWriter();
+		try {
+			writer.updateOperation(id, name, hasParent, parentGuid, currentParentGuid);
+			database.setTransactionSuccessful();
 		} catch (Exception e) {
-			Log.e(TAG, "Couldn't update Tag", e);
+			Log.e(TAG, "Couldn't update pending operation", e);
 		} finally {
+			writer.discard();
 			database.endTransaction();
 		}
 	}
 
 	/**
-	 * Wipes out the entire Tags table.
+	 * Remove operations from the outbox that don't need to be sent anymore 
+	 * (because they were coalesced with other operations).
+	 * @param	ids	the ids of the operations on the outbox.
+	 * 
+	 */
+	public void removePendingOperations(List<Long> ids) {
+		if (ids.isEmpty())
+			return;
+		beginWrite();
+		TagBatchWriter writer = getWriter();
+		try {
+			for (Long id : ids) {
+				writer.deleteOperation(id);
+			}
+			database.setTransactionSuccessful();
+		} catch (Exception e) {
+			Log.e(TAG, "Couldn't remove pending operations", e);
+		} finally {
+			writer.discard();
+			database.endTransaction();
+		}
+	}
+
+	/**
+	 * Record a failed attempt to send an operation, so the retry survives a restart.
+	 * @param	id	the id of the operation on the outbox.
+	 * @param	attempts	the number of failed attempts so far.
+	 * @param	nextAttemptAt	when to try again, in milliseconds since the epoch.
+	 * 
+	 */
+	public void scheduleRetry(long id, int attempts, long nextAttemptAt) {
+		beginWrite();
+		TagBatchWriter writer = getWriter();
+		try {
+			writer.setRetry(id, attempts, nextAttemptAt);
+			database.setTransactionSuccessful();
+		} catch (Exception e) {
+			Log.e(TAG, "Couldn't schedule retry", e);
+		} finally {
+			writer.discard();
+			database.endTransaction();
+		}
+	}
+
+	/**
+	 * Give up on an operation the Evernote service won't accept, removing it from the outbox.
+	 * <p>The local tag no longer matches the service, so we reset its updateSequenceNum 
+	 * and the next full sync replaces it (or removes it, for a tag that was never created).</p>
+	 * @param	id	the id of the operation on the outbox.
+	 * @param	guid	the Guid of the tag.
+	 * @returns {@link true} if the operation succeeded.
+	 * 
+	 */
+	public boolean abandonPendingOperation(long id, String guid) {
+		ensureTree();
+		boolean success = false;
+		beginWrite();
+		TagBatchWriter writer = getWriter();
+		try {
+			writer.deleteOperation(id);
+			writer.setUpdateSequenceNum(guid, -1);
+			writer.updatePendingFlag(guid);
+			TagTree.Node node = tree.get(guid);
+			if (node != null)
+				tree.put(guid, node.name, node.parentGuid, -1);
+			storeAncestry(writer);
+			database.setTransactionSuccessful();
+			success = true;
+		} catch (Exception e) {
+			Log.e(TAG, "Couldn't abandon pending operation", e);
+		} finally {
+			writer.discard();
+			database.endTransaction();
+		}
+		if (success)
+			treeChanged();
+		else
+			reloadTree();
+		return success;
+	}
+
+	/**
+	 * Reconcile a tag created locally with the one created by the Evernote service.
+	 * <p>The provisional Guid is replaced everywhere (the tag, its children and the outbox),
+	 * but we keep the local name and parent, since they may have changed since the tag
+	 * was sent.</p>
+	 * @param	id	the id of the operation on the outbox.
+	 * @param	localGuid	the provisional Guid of the tag.
+	 * @param	created	the {@link Tag} returned by the Evernote service.
+	 * @returns {@link true} if the operation succeeded.
+	 * 
+	 */
+	public boolean confirmCreate(long id, String localGuid, Tag created) {
+		ensureTree();
+		boolean success = false;
+		String guid = created.getGuid();
+		String[] guids = new String[] { guid, localGuid };
+		beginWrite();
+		TagBatchWriter writer = getWriter();
+		try {
+			// read inside the transaction, so no other write changes the children in between
+			List<TagTree.Node> children = tree.getChildren(localGuid);
+			// a sync could have brought the tag in already
+			database.delete(DatabaseHelper.TABLE_TAGS, SELECTION, new String[] { guid });
+			database.execSQL("UPDATE " + DatabaseHelper.TABLE_TAGS + " SET " + DatabaseHelper.COLUMN_GUID 
+					+ " = ?, " + DatabaseHelper.COLUMN_UPDATE_SEQ_NUM + " = ? WHERE " + DatabaseHelper.COLUMN_GUID 
+					+ " = ?", new Object[] { guid, created.getUpdateSequenceNum(), localGuid });
+			database.execSQL("UPDATE " + DatabaseHelper.TABLE_TAGS + " SET " + DatabaseHelper.COLUMN_PARENT_GUID 
+					+ " = ? WHERE " + DatabaseHelper.COLUMN_PARENT_GUID + " = ?", guids);
+			writer.deleteOperation(id);
+			for (String column : new String[] { DatabaseHelper.COLUMN_GUID, DatabaseHelper.COLUMN_PARENT_GUID, 
+					DatabaseHelper.COLUMN_CURRENT_PARENT_GUID }) {
+				database.execSQL("UPDATE " + DatabaseHelper.TABLE_PENDING_OPS + " SET " + column + " = ? WHERE " 
+						+ column + " = ?", guids);
+			}
+			writer.updatePendingFlag(guid);
+			TagTree.Node node = tree.get(localGuid);
+			tree.remove(localGuid);
+			if (node != null)
+				tree.put(guid, node.name, node.parentGuid, created.getUpdateSequenceNum());
+			for (TagTree.Node child : children) {
+				tree.put(child.guid, child.name, guid, child.updateSequenceNum);
+			}
+			storeAncestry(writer);
+			database.setTransactionSuccessful();
+			success = true;
+		} catch (Exception e) {
+			Log.e(TAG, "Couldn't confirm created Tag", e);
+		} finally {
+			writer.discard();
+			database.endTransaction();
+		}
+		if (success)
+			treeChanged();
+		else
+			reloadTree();
+		return success;
+	}
+
+	/**
+	 * Reconcile a tag updated locally with the updateSequenceNum from the Evernote service.
+	 * <p>If a sync skipped the tag while the update was pending (see {@link #isSkippedBySync(String)}) 
+	 * we keep the updateSequenceNum we had, so the version of the service is written when 
+	 * the tag is fetched again.</p>
+	 * @param	id	the id of the operation on the outbox.
+	 * @param	guid	the Guid of the tag.
+	 * @param	updateSequenceNum	the updateSequenceNum returned by the Evernote service.
+	 * @returns {@link true} if the operation succeeded.
+	 * 
+	 */
+	public boolean confirmUpdate(long id, String guid, int updateSequenceNum) {
+		ensureTree();
+		boolean success = false;
+		beginWrite();
+		TagBatchWriter writer = getWriter();
+		try {
+			TagTree.Node node = tree.get(guid);
+			if (!isSkippedBySync(guid)) {
+				writer.setUpdateSequenceNum(guid, updateSequenceNum);
+				if (node != null)
+					tree.put(guid, node.name, node.parentGuid, updateSequenceNum);
+			}
+			writer.deleteOperation(id);
+			writer.updatePendingFlag(guid);
+			storeAncestry(writer);
+			database.setTransactionSuccessful();
+			success = true;
+		} catch (Exception e) {
+			Log.e(TAG, "Couldn't confirm updated Tag", e);
+		} finally {
+			writer.discard();
+			database.endTransaction();
+		}
+		if (success)
+			treeChanged();
+		else
+			reloadTree();
+		return success;
+	}
+
+	/**
+	 * Remove a delete from the outbox, once the Evernote service expunged the tag.
+	 * @param	id	the id of the operation on the outbox.
+	 * @returns {@link true} if the operation succeeded.
+	 * 
+	 */
+	public boolean confirmDelete(long id) {
+		try {
+			database.delete(DatabaseHelper.TABLE_PENDING_OPS, DatabaseHelper.COLUMN_ID + " = ?", 
+					new String[] { String.valueOf(id) });
+			return true;
+		} catch (Exception e) {
+			Log.e(TAG, "Couldn't confirm deleted Tag", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Wipes out the entire Tags table, and the outbox with it.
 	 * 
 	 */
 	public void cleanDb() {
-		database.beginTransaction();
+		ensureTree();
+		boolean success = false;
+		beginWrite();
 		try {
 			database.delete(DatabaseHelper.TABLE_TAGS, 
 					null /* null on the where criteria to delete all rows*/, 
 					null);
+			database.delete(DatabaseHelper.TABLE_PENDING_OPS, null, null);
+			tree.build(new ArrayList<TagTree.Node>(0));
+			synchronized (skippedBySync) {
+				skippedBySync.clear();
+			}
 			database.setTransactionSuccessful();
+			success = true;
 		} catch (Exception e) {
 			Log.e(TAG, "Failed to clean the Tags table", e);
 		} finally {
 			database.endTransaction();
 		}
+		if (!success)
+			reloadTree();
+		notifyChange(TagsProvider.CONTENT_URI);
 	}
 }
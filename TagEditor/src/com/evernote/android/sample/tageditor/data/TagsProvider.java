@@ -0,0 +1,173 @@
+package com.evernote.android.sample.tageditor.data;
+
+import java.util.Collection;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+
+/**
+ * Content Provider that exposes the lists of Tags shown by the app
+ * <p> Every level of the hierarchy has its own URI ({@link #TOP_LEVEL_URI} for the top level
+ * tags, {@link #getChildrenUri(String)} for the children of a tag), and so do searches
+ * ({@link #getSearchUri(String)}) and the tags a selection can be moved under
+ * ({@link #getParentCandidatesUri(Collection)}). {@link TagsDb} notifies the URIs of the 
+ * levels touched by each write, so a loader only queries again when the level it shows changed.</p>
+ * <p> The provider is read only, changes go through the sync service so that they
+ * reach the Evernote service. It isn't exported.</p>
+ *
+ */
+public class TagsProvider extends ContentProvider {
+
+	public static final String AUTHORITY = "com.evernote.android.sample.tageditor.tags";
+
+	// Notifying this URI reaches every list
+	public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
+	public static final Uri TOP_LEVEL_URI = Uri.withAppendedPath(CONTENT_URI, "top");
+	public static final Uri CHILDREN_URI = Uri.withAppendedPath(CONTENT_URI, "children");
+	// Notifying this URI reaches every search
+	public static final Uri SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, "search");
+	public static final Uri PARENTS_URI = Uri.withAppendedPath(CONTENT_URI, "parents");
+	// Query parameter of PARENTS_URI, repeated for every tag that can't be a parent
+	private static final String PARAM_EXCLUDE = "exclude";
+
+	public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.evernote.tag";
+
+	private static final int MATCH_TOP_LEVEL = 1;
+	private static final int MATCH_CHILDREN = 2;
+	private static final int MATCH_SEARCH = 3;
+	private static final int MATCH_PARENTS = 4;
+	private static final UriMatcher matcher = new UriMatcher(UriMatcher.NO_MATCH);
+
+	static {
+		matcher.addURI(AUTHORITY, "top", MATCH_TOP_LEVEL);
+		matcher.addURI(AUTHORITY, "children/*", MATCH_CHILDREN);
+		// an empty search is allowed, it has no results
+		matcher.addURI(AUTHORITY, "search", MATCH_SEARCH);
+		matcher.addURI(AUTHORITY, "search/*", MATCH_SEARCH);
+		matcher.addURI(AUTHORITY, "parents", MATCH_PARENTS);
+	}
+
+	/**
+	 * Obtain the URI of a level of the hierarchy.
+	 * @param	parentGuid	A string representing the Guid of the Parent Tag, or null (or "") for the top level.
+	 * @returns {@link Uri}
+	 *
+	 */
+	public static Uri getLevelUri(String parentGuid) {
+		if (parentGuid == null || parentGuid.length() == 0)
+			return TOP_LEVEL_URI;
+		return getChildrenUri(parentGuid);
+	}
+
+	/**
+	 * Obtain the URI of the children of a tag.
+	 * @param	guid	A string representing the Guid of the Parent Tag.
+	 * @returns {@link Uri}
+	 *
+	 */
+	public static Uri getChildrenUri(String guid) {
+		return CHILDREN_URI.buildUpon().appendPath(guid).build();
+	}
+
+	/**
+	 * Obtain the URI of a search by name.
+	 * @param	query	The text typed by the user.
+	 * @returns {@link Uri}
+	 *
+	 */
+	public static Uri getSearchUri(String query) {
+		if (query == null || query.length() == 0)
+			return SEARCH_URI;
+		return SEARCH_URI.buildUpon().appendPath(query).build();
+	}
+
+	/**
+	 * Obtain the URI of the tags that some tags can be moved under (see 
+	 * {@link TagsDb#getParentCandidates(Collection, String, CharSequence)}).
+	 * @param	excludedGuids	The Guids of the tags being moved, they can't go under themselves
+	 * or their subtrees.
+	 * @returns {@link Uri}
+	 *
+	 */
+	public static Uri getParentCandidatesUri(Collection<String> excludedGuids) {
+		Uri.Builder builder = PARENTS_URI.buildUpon();
+		for (String guid : excludedGuids) {
+			builder.appendQueryParameter(PARAM_EXCLUDE, guid);
+		}
+		return builder.build();
+	}
+
+	@Override
+	public boolean onCreate() {
+		// the database is opened on the first query
+		return true;
+	}
+
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		int match = matcher.match(uri);
+		if (match == UriMatcher.NO_MATCH)
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		// the database stays acquired for as long as the cursor is open
+		final TagsDb db = TagsDb.INSTANCE;
+		db.acquire(getContext());
+		Cursor cursor;
+		try {
+			switch (match) {
+			case MATCH_TOP_LEVEL:
+				cursor = db.getTopLevelTags();
+				break;
+			case MATCH_CHILDREN:
+				cursor = db.getChildTags(uri.getLastPathSegment());
+				break;
+			case MATCH_PARENTS:
+				cursor = db.getParentCandidates(uri.getQueryParameters(PARAM_EXCLUDE), null, null);
+				break;
+			default:
+				cursor = db.searchTags((uri.getPathSegments().size() > 1) ? uri.getLastPathSegment() : null);
+				break;
+			}
+		} catch (RuntimeException e) {
+			db.release();
+			throw e;
+		}
+		cursor = new CursorWrapper(cursor) {
+			private boolean released;
+
+			@Override
+			public void close() {
+				super.close();
+				if (!released) {
+					released = true;
+					db.release();
+				}
+			}
+		};
+		cursor.setNotificationUri(getContext().getContentResolver(), uri);
+		return cursor;
+	}
+
+	@Override
+	public String getType(Uri uri) {
+		return (matcher.match(uri) != UriMatcher.NO_MATCH) ? CONTENT_TYPE : null;
+	}
+
+	@Override
+	public Uri insert(Uri uri, ContentValues values) {
+		throw new UnsupportedOperationException("Tags are created through the sync service");
+	}
+
+	@Override
+	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+		throw new UnsupportedOperationException("Tags are updated through the sync service");
+	}
+
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		throw new UnsupportedOperationException("Tags are deleted through the sync service");
+	}
+}
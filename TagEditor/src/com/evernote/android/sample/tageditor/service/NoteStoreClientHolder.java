@@ -0,0 +1,180 @@
+package com.evernote.android.sample.tageditor.service;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.evernote.client.oauth.android.EvernoteSession;
+import com.evernote.edam.notestore.NoteStore.Client;
+import com.evernote.thrift.transport.TTransport;
+import com.evernote.thrift.transport.TTransportException;
+
+/**
+ * Keeps the NoteStore clients used by the sync service, so they can be reused across operations
+ * <p> Every {@link EvernoteSession#createNoteStore()} call builds a new Thrift transport, with
+ * its own HTTP client, so reusing a client lets us reuse its kept-alive connection instead
+ * of setting up a new one (and redoing the TLS handshake) for every operation.</p>
+ * <p> Thrift clients aren't thread safe, so each worker borrows a client with {@link #acquire()}
+ * and gives it back with {@link #release(Client, boolean)}. A client is only rebuilt when
+ * its transport failed, it's been idle long enough for the server to drop its connection,
+ * or the user changed.</p>
+ * <p> There's no way to tell if the server dropped a kept-alive connection short of a 
+ * round trip, so we don't check before reusing a client. When a reused client fails with 
+ * a transport error, it's evicted along with every idle client and {@link #release(Client, boolean)}
+ * tells the caller to run the operation again right away, on a new client.</p>
+ *
+ */
+class NoteStoreClientHolder {
+
+	private static final String TAG = "NoteStoreClientHolder";
+
+	// Servers close idle keep-alive connections, there's no point in reusing a client after this
+	static final long MAX_IDLE_MS = 2 * 60 * 1000;
+
+	/**
+	 * Builds the clients, for the user that is currently logged in.
+	 *
+	 */
+	interface ClientFactory {
+		String getAuthToken();
+		Client createNoteStore() throws TTransportException;
+	}
+
+	private static final class Entry {
+		final Client client;
+		final String authToken;
+		long lastUsed;
+		// set once the client is handed out a second time
+		boolean reused;
+
+		Entry(Client client, String authToken) {
+			this.client = client;
+			this.authToken = authToken;
+		}
+	}
+
+	private final ClientFactory factory;
+	private final ArrayDeque<Entry> idle = new ArrayDeque<Entry>();
+	private final Map<Client, Entry> borrowed = new IdentityHashMap<Client, Entry>();
+	// The user the idle clients belong to
+	private String authToken;
+
+	NoteStoreClientHolder(final EvernoteSession session) {
+		this(new ClientFactory() {
+			@Override
+			public String getAuthToken() {
+				return session.getAuthToken();
+			}
+
+			@Override
+			public Client createNoteStore() throws TTransportException {
+				return session.createNoteStore();
+			}
+		});
+	}
+
+	NoteStoreClientHolder(ClientFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Borrow a client, reusing an idle one if possible.
+	 * @throws TTransportException if we need a new client and it can't be created.
+	 *
+	 */
+	Client acquire() throws TTransportException {
+		String currentAuthToken = factory.getAuthToken();
+		synchronized (this) {
+			// the clients of a previous login can't be reused
+			if (!isSameUser(currentAuthToken)) {
+				clear();
+				authToken = currentAuthToken;
+			}
+			Entry entry;
+			while ((entry = idle.pollLast()) != null) {
+				if (SystemClock.elapsedRealtime() - entry.lastUsed <= MAX_IDLE_MS) {
+					entry.reused = true;
+					borrowed.put(entry.client, entry);
+					return entry.client;
+				}
+				discard(entry);
+			}
+		}
+		// building a client can take a while, so we do it outside the lock
+		Entry entry = new Entry(factory.createNoteStore(), currentAuthToken);
+		synchronized (this) {
+			borrowed.put(entry.client, entry);
+		}
+		return entry.client;
+	}
+
+	/**
+	 * Give back a client obtained with {@link #acquire()}.
+	 * @param	client	the {@link Client} being returned.
+	 * @param	transportFailed	{@link true} if the client failed with a transport error,
+	 * in which case it's thrown away.
+	 * @returns {@link true} if the client that failed had been reused. The server most likely
+	 * dropped its connection while it was idle, so the failed operation can run again
+	 * right away on a new client.
+	 *
+	 */
+	synchronized boolean release(Client client, boolean transportFailed) {
+		Entry entry = borrowed.remove(client);
+		if (entry == null)
+			return false;
+		if (transportFailed) {
+			discard(entry);
+			if (!entry.reused)
+				return false;
+			// the other idle clients have been sitting on the same server as long as this one
+			clear();
+			return true;
+		}
+		if (isSameUser(entry.authToken)) {
+			entry.lastUsed = SystemClock.elapsedRealtime();
+			idle.addLast(entry);
+		} else {
+			// the user logged out (or in) while the client was borrowed
+			discard(entry);
+		}
+		return false;
+	}
+
+	/**
+	 * Close all the idle clients. The clients that are borrowed are closed when they're released,
+	 * if they belong to another user by then.
+	 *
+	 */
+	synchronized void clear() {
+		Entry entry;
+		while ((entry = idle.poll()) != null) {
+			discard(entry);
+		}
+	}
+
+	/**
+	 * Forget the current user and close all the idle clients, after a logout or a new login.
+	 *
+	 */
+	synchronized void reset() {
+		clear();
+		authToken = null;
+	}
+
+	private boolean isSameUser(String otherAuthToken) {
+		return authToken != null && authToken.equals(otherAuthToken);
+	}
+
+	private void discard(Entry entry) {
+		try {
+			TTransport transport = entry.client.getInputProtocol().getTransport();
+			if (transport.isOpen())
+				transport.close();
+		} catch (Exception e) {
+			Log.w(TAG, "Couldn't close NoteStore transport", e);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.evernote.android.sample.tageditor.service;
+
+import java.util.Random;
+
+import com.evernote.edam.error.EDAMErrorCode;
+import com.evernote.edam.error.EDAMNotFoundException;
+import com.evernote.edam.error.EDAMSystemException;
+import com.evernote.edam.error.EDAMUserException;
+import com.evernote.thrift.TException;
+
+/**
+ * Decides if (and when) a failed operation is sent again to the Evernote service
+ * <p> Transient failures (network errors, the service being unavailable) are retried with
+ * exponential backoff and jitter, so a burst of failed operations doesn't come back all
+ * at once. A rate limit error tells us exactly how long to wait, and that applies to
+ * every operation, not only the one that failed. Errors caused by the request itself
+ * (a duplicate name, a tag that no longer exists) will fail again, so they aren't retried.</p>
+ *
+ */
+class RetryPolicy {
+
+	// Attempts before we give up on an operation
+	static final int MAX_ATTEMPTS = 6;
+
+	// Delay before the first retry, doubled on each attempt up to MAX_DELAY_MS
+	static final long BASE_DELAY_MS = 2 * 1000;
+	static final long MAX_DELAY_MS = 5 * 60 * 1000;
+
+	// Spread added to a rate limit, so the paused workers don't all hit the service at once
+	static final long RATE_LIMIT_JITTER_MS = 1000;
+
+	private static final Random random = new Random();
+
+	private RetryPolicy() {
+	}
+
+	/**
+	 * Obtain the delay before the next attempt of an operation.
+	 * @param	attempts	the number of failed attempts so far (1 or more).
+	 * @returns the delay in milliseconds, between half and all of the exponential delay.
+	 *
+	 */
+	static long backoff(int attempts) {
+		long delay = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(Math.max(attempts - 1, 0), 16));
+		return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+	}
+
+	/**
+	 * Obtain how long the service asked us to wait, if the failure is a rate limit error.
+	 * @returns the delay in milliseconds, or -1 if the failure isn't a rate limit.
+	 *
+	 */
+	static long rateLimitDelay(Exception failure) {
+		if (failure instanceof EDAMSystemException) {
+			EDAMSystemException e = (EDAMSystemException) failure;
+			if (e.getErrorCode() == EDAMErrorCode.RATE_LIMIT_REACHED && e.isSetRateLimitDuration())
+				return e.getRateLimitDuration() * 1000L + (long) (random.nextDouble() * RATE_LIMIT_JITTER_MS);
+		}
+		return -1;
+	}
+
+	/**
+	 * Can the operation succeed if we send it again.
+	 *
+	 */
+	static boolean isRetryable(Exception failure) {
+		if (failure instanceof EDAMUserException || failure instanceof EDAMNotFoundException)
+			return false;
+		return failure instanceof EDAMSystemException || failure instanceof TException;
+	}
+}
@@ -0,0 +1,201 @@
+package com.evernote.android.sample.tageditor.service;
+
+import java.util.UUID;
+
+import android.content.Intent;
+import android.database.Cursor;
+import android.text.TextUtils;
+
+import com.evernote.android.sample.tageditor.data.DatabaseHelper;
+import com.evernote.android.sample.tageditor.data.TagsDb;
+import com.evernote.android.sample.tageditor.service.TagSyncService.Task;
+
+/**
+ * A unit of work for the sync service, built from the Intent that requested it
+ *
+ */
+class TagOperation {
+
+	final Task task;
+	// Guid of the tag the operation works on (null for SYNC and RESET). A CREATE gets a provisional 
+	// Guid as soon as it's built, until the Evernote service assigns the real one
+	String guid;
+	String name;
+	// the new parent of the tag, only meaningful if hasParent is true
+	String parentGuid;
+	boolean hasParent;
+	// the parent the tag had when the operation was queued, used to keep the order
+	// of operations on a parent and its children
+	String currentParentGuid;
+	boolean fullSync;
+	// id of the operation on the outbox, -1 for a SYNC (which isn't stored)
+	long outboxId = -1;
+	// number of failed attempts, and when (wall clock) the operation can run again
+	int attempts;
+	long nextAttemptAt;
+	// the bulk operation this one belongs to, or null
+	TagOperationBatch batch;
+
+	TagOperation(Task task) {
+		this.task = task;
+	}
+
+	/**
+	 * Build an operation from an Intent sent to the service.
+	 * @returns the {@link TagOperation} or null if the Intent doesn't describe a valid one.
+	 *
+	 */
+	static TagOperation fromIntent(Intent intent) {
+		Task task = getTask(intent);
+		if (task == null)
+			return null;
+
+		TagOperation op = new TagOperation(task);
+		op.guid = intent.getStringExtra(TagSyncService.EXTRA_TAG_GUID);
+		op.name = intent.getStringExtra(TagSyncService.EXTRA_TAG_NAME);
+		op.fullSync = intent.getBooleanExtra(TagSyncService.EXTRA_FULL_SYNC, false);
+		if (intent.hasExtra(TagSyncService.EXTRA_TAG_PARENT)) {
+			op.hasParent = true;
+			op.parentGuid = getParentGuid(intent);
+		}
+
+		// every task but SYNC needs some information about the tag
+		switch (task) {
+		case CREATE:
+			if (op.name == null)
+				return null;
+			// the queue matches a later DELETE of the new tag against this Guid
+			op.guid = newLocalGuid();
+			return op;
+		case UPDATE:
+		case DELETE:
+			return (op.guid != null) ? op : null;
+		case SYNC:
+		case RESET:
+			return op;
+		default:
+			// bulk operations are built by TagOperationBatch
+			return null;
+		}
+	}
+
+	/**
+	 * Build a provisional Guid for a tag created locally.
+	 *
+	 */
+	static String newLocalGuid() {
+		return TagSyncService.LOCAL_GUID_PREFIX + UUID.randomUUID().toString();
+	}
+
+	/**
+	 * Obtain the task requested by an Intent sent to the service, or null if there's none.
+	 *
+	 */
+	static Task getTask(Intent intent) {
+		// If the intent is empty or has no "current task"set, we ignore this call
+		if (intent == null || intent.getExtras() == null || !intent.hasExtra(TagSyncService.EXTRA_CURRENT_TASK))
+			return null;
+		try {
+			return (Task) intent.getExtras().get(TagSyncService.EXTRA_CURRENT_TASK);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Obtain the parent tag requested by an Intent sent to the service.
+	 * @returns the Guid of the parent, or null for the empty tag (or if there's none).
+	 *
+	 */
+	static String getParentGuid(Intent intent) {
+		String parentGuid = intent.getStringExtra(TagSyncService.EXTRA_TAG_PARENT);
+		// if the parent tag is the empty tag, we set the parent guid to null
+		if (TextUtils.isEmpty(parentGuid) || parentGuid.equalsIgnoreCase(TagsDb.EMPTY_TAG_LIST_ITEM))
+			return null;
+		return parentGuid;
+	}
+
+	/**
+	 * Build an operation from a row of the outbox (see {@link TagsDb#getPendingOperations()}).
+	 * @returns the {@link TagOperation} or null if the row doesn't describe a valid one.
+	 *
+	 */
+	static TagOperation fromCursor(Cursor cursor) {
+		Task task;
+		try {
+			task = Task.valueOf(cursor.getString(cursor.getColumnIndex(DatabaseHelper.COLUMN_TASK)));
+		} catch (Exception e) {
+			return null;
+		}
+		TagOperation op = new TagOperation(task);
+		op.outboxId = cursor.getLong(cursor.getColumnIndex(DatabaseHelper.COLUMN_ID));
+		op.guid = cursor.getString(cursor.getColumnIndex(DatabaseHelper.COLUMN_GUID));
+		op.name = cursor.getString(cursor.getColumnIndex(DatabaseHelper.COLUMN_NAME));
+		op.hasParent = cursor.getInt(cursor.getColumnIndex(DatabaseHelper.COLUMN_HAS_PARENT)) != 0;
+		op.parentGuid = cursor.getString(cursor.getColumnIndex(DatabaseHelper.COLUMN_PARENT_GUID));
+		op.currentParentGuid = cursor.getString(cursor.getColumnIndex(DatabaseHelper.COLUMN_CURRENT_PARENT_GUID));
+		op.attempts = cursor.getInt(cursor.getColumnIndex(DatabaseHelper.COLUMN_ATTEMPTS));
+		op.nextAttemptAt = cursor.getLong(cursor.getColumnIndex(DatabaseHelper.COLUMN_NEXT_ATTEMPT_AT));
+		return (op.guid != null) ? op : null;
+	}
+
+	/**
+	 * Replace a provisional Guid, once the Evernote service assigned the real one.
+	 *
+	 */
+	void remapGuid(String localGuid, String guid) {
+		if (localGuid.equals(this.guid))
+			this.guid = guid;
+		if (localGuid.equals(parentGuid))
+			parentGuid = guid;
+		if (localGuid.equals(currentParentGuid))
+			currentParentGuid = guid;
+	}
+
+	/**
+	 * Fold an earlier UPDATE of the same tag into this one. Our values win, but we keep
+	 * whatever the earlier update set and this one doesn't.
+	 *
+	 */
+	void mergeEarlierUpdate(TagOperation earlier) {
+		if (name == null)
+			name = earlier.name;
+		if (!hasParent && earlier.hasParent) {
+			hasParent = true;
+			parentGuid = earlier.parentGuid;
+		}
+		// the service still has the parent from before the earlier update
+		currentParentGuid = earlier.currentParentGuid;
+	}
+
+	/**
+	 * Must this operation wait for (or run before) another one.
+	 * <p>A SYNC conflicts with everything, and two operations conflict when they work on 
+	 * the same tag, or when one works on the parent of the tag of the other. The deletes of 
+	 * a {@link Task#DELETE_SUBTREE} batch remove the whole subtree together, so they don't 
+	 * wait for each other, only for the operations outside the batch.</p>
+	 *
+	 */
+	boolean conflictsWith(TagOperation other) {
+		if (task == Task.SYNC || other.task == Task.SYNC)
+			return true;
+		if (batch != null && batch == other.batch && batch.task == Task.DELETE_SUBTREE)
+			return false;
+		if (guid != null && (guid.equals(other.guid) || other.isChildOf(guid)))
+			return true;
+		return other.guid != null && isChildOf(other.guid);
+	}
+
+	/**
+	 * Is the tag of this operation (before or after it runs) a child of the given tag
+	 *
+	 */
+	private boolean isChildOf(String parent) {
+		return (hasParent && parent.equals(parentGuid)) || parent.equals(currentParentGuid);
+	}
+
+	@Override
+	public String toString() {
+		return task + " " + ((guid != null) ? guid : "") + ((name != null) ? " " + name : "");
+	}
+}
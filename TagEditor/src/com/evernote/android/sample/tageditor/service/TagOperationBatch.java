@@ -0,0 +1,107 @@
+package com.evernote.android.sample.tageditor.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Intent;
+
+import com.evernote.android.sample.tageditor.service.TagSyncService.Task;
+
+/**
+ * A bulk operation (deleting or moving several tags at once, or deleting a tag with all its
+ * children), built from the Intent that requested it
+ * <p> The batch is split into one {@link TagOperation} per tag, so they go through the queue
+ * and run in parallel like any other operation, but the local changes are written together
+ * and the outcome is reported once, when the last operation of the batch is done.</p>
+ *
+ */
+class TagOperationBatch {
+
+	// BULK_DELETE, BULK_MOVE or DELETE_SUBTREE
+	final Task task;
+	final List<TagOperation> operations = new ArrayList<TagOperation>();
+
+	// Operations that haven't finished yet, and if any of them failed
+	private int remaining;
+	private boolean failed;
+
+	TagOperationBatch(Task task) {
+		this.task = task;
+	}
+
+	/**
+	 * Build a batch from an Intent sent to the service.
+	 * @returns the {@link TagOperationBatch} or null if the Intent doesn't describe a bulk operation.
+	 *
+	 */
+	static TagOperationBatch fromIntent(Intent intent) {
+		Task task = TagOperation.getTask(intent);
+		List<String> guids;
+		if (task == Task.BULK_DELETE || task == Task.BULK_MOVE) {
+			guids = intent.getStringArrayListExtra(TagSyncService.EXTRA_TAG_GUIDS);
+		} else if (task == Task.DELETE_SUBTREE && intent.hasExtra(TagSyncService.EXTRA_TAG_GUID)) {
+			// the descendants are added once the batch is applied locally
+			guids = new ArrayList<String>();
+			guids.add(intent.getStringExtra(TagSyncService.EXTRA_TAG_GUID));
+		} else {
+			return null;
+		}
+		if (guids == null || guids.isEmpty())
+			return null;
+		// every tag is moved to the same parent
+		boolean hasParent = intent.hasExtra(TagSyncService.EXTRA_TAG_PARENT);
+		String parentGuid = TagOperation.getParentGuid(intent);
+		if (task == Task.BULK_MOVE && !hasParent)
+			return null;
+
+		TagOperationBatch batch = new TagOperationBatch(task);
+		for (String guid : guids) {
+			if (task == Task.BULK_MOVE) {
+				TagOperation op = batch.add(Task.UPDATE, guid);
+				op.hasParent = true;
+				op.parentGuid = parentGuid;
+			} else {
+				batch.add(Task.DELETE, guid);
+			}
+		}
+		return batch;
+	}
+
+	/**
+	 * Add an operation on a tag to the batch.
+	 *
+	 */
+	TagOperation add(Task task, String guid) {
+		TagOperation op = new TagOperation(task);
+		op.guid = guid;
+		op.batch = this;
+		operations.add(op);
+		return op;
+	}
+
+	/**
+	 * Start counting the operations of the batch, once it won't change anymore.
+	 *
+	 */
+	synchronized void begin() {
+		remaining = operations.size();
+	}
+
+	/**
+	 * Record the outcome of one of the operations of the batch.
+	 * @returns {@link true} if it was the last one, and the batch is done.
+	 *
+	 */
+	synchronized boolean finish(boolean success) {
+		failed |= !success;
+		return --remaining == 0;
+	}
+
+	/**
+	 * Did any of the operations of the batch fail. Only meaningful once the batch is done.
+	 *
+	 */
+	synchronized boolean hasFailed() {
+		return failed;
+	}
+}
@@ -0,0 +1,232 @@
+package com.evernote.android.sample.tageditor.service;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.evernote.android.sample.tageditor.service.TagSyncService.Task;
+
+/**
+ * Queue of pending operations for the sync service, that coalesces redundant work
+ * before it reaches the Evernote service
+ * <p> While an operation is waiting on the queue:</p>
+ * <ul>
+ * <li>a new SYNC is dropped if there's already one pending (a full sync request is kept).</li>
+ * <li>a new UPDATE replaces the pending UPDATE of the same tag, taking its place on the
+ * queue, unless an operation queued between them conflicts with either of them.</li>
+ * <li>a DELETE cancels a pending CREATE of the same tag (both are dropped) and
+ * any pending UPDATE of it.</li>
+ * </ul>
+ * <p> Operations are handed to the workers with {@link #pollRunnable()}, which skips
+ * the ones that conflict with an operation that is running or queued ahead of them
+ * (see {@link TagOperation#conflictsWith(TagOperation)}), so operations on unrelated
+ * tags can run in parallel while the ones on the same tag keep their order.</p>
+ * <p> A failed operation goes back to the front of the queue with {@link #retry(TagOperation)},
+ * and isn't handed out again until its nextAttemptAt. The operations that conflict with it
+ * keep waiting behind it. The whole queue can also be paused with {@link #pauseUntil(long)}, 
+ * when the Evernote service tells us we're sending too much.</p>
+ * <p> The queue is accessed from the main thread (when intents arrive) and from the
+ * worker threads, so all the methods are synchronized.</p>
+ *
+ */
+class TagOperationQueue {
+
+	private final List<TagOperation> pending = new ArrayList<TagOperation>();
+	private final List<TagOperation> running = new ArrayList<TagOperation>();
+	// Running operations that were cleared, they aren't put back on the queue if they fail
+	private final List<TagOperation> cancelled = new ArrayList<TagOperation>();
+
+	// Nothing runs before this time (wall clock)
+	private long pausedUntil;
+
+	/**
+	 * Add an operation to the queue, coalescing it with the pending ones.
+	 * @param	op	the operation to add.
+	 * @param	dropped	receives the operations that don't need to run anymore, 
+	 * including op itself if it isn't queued.
+	 * @returns {@link true} if the operation was queued, {@link false} if it was
+	 * absorbed by (or cancelled against) a pending operation.
+	 *
+	 */
+	synchronized boolean offer(TagOperation op, List<TagOperation> dropped) {
+		switch (op.task) {
+		case SYNC:
+			for (TagOperation queued : pending) {
+				if (queued.task == Task.SYNC) {
+					// the pending sync will do the same work, unless this one needs to be a full sync
+					queued.fullSync |= op.fullSync;
+					dropped.add(op);
+					return false;
+				}
+			}
+			break;
+		case UPDATE:
+			for (int i = pending.size() - 1; i >= 0; i--) {
+				TagOperation queued = pending.get(i);
+				if (queued.task != Task.UPDATE || !op.guid.equals(queued.guid))
+					continue;
+				// an operation queued in between has to see the earlier update (a move under a tag
+				// that is deleted next), and has to run before the later one, so both are kept
+				if (conflictsWithAfter(i, queued) || conflictsWithAfter(i, op))
+					break;
+				// only the last update matters, it takes the place of the earlier one
+				op.mergeEarlierUpdate(queued);
+				pending.set(i, op);
+				dropped.add(queued);
+				return true;
+			}
+			break;
+		case DELETE:
+			boolean cancelled = false;
+			for (Iterator<TagOperation> it = pending.iterator(); it.hasNext();) {
+				TagOperation queued = it.next();
+				if (!op.guid.equals(queued.guid))
+					continue;
+				if (queued.task == Task.CREATE) {
+					// the tag never reached the service, so there's nothing to delete
+					it.remove();
+					dropped.add(queued);
+					cancelled = true;
+				} else if (queued.task == Task.UPDATE) {
+					it.remove();
+					dropped.add(queued);
+				}
+			}
+			if (cancelled) {
+				dropped.add(op);
+				return false;
+			}
+			break;
+		default:
+			break;
+		}
+		pending.add(op);
+		return true;
+	}
+
+	/**
+	 * Remove and return the oldest operation that can run right now, or null if there's none.
+	 * The operation is considered running until {@link #complete(TagOperation)} is called.
+	 * @param	now	the current time, in milliseconds since the epoch.
+	 *
+	 */
+	synchronized TagOperation pollRunnable(long now) {
+		if (now < pausedUntil)
+			return null;
+		int index = 0;
+		for (TagOperation candidate : pending) {
+			if (candidate.nextAttemptAt <= now && canRun(candidate, index)) {
+				pending.remove(index);
+				running.add(candidate);
+				return candidate;
+			}
+			index++;
+		}
+		return null;
+	}
+
+	/**
+	 * Mark an operation obtained with {@link #pollRunnable()} as finished.
+	 *
+	 */
+	synchronized void complete(TagOperation op) {
+		running.remove(op);
+		cancelled.remove(op);
+	}
+
+	/**
+	 * Put a running operation that failed back on the queue. It goes first, so the
+	 * operations that conflict with it still run after it.
+	 *
+	 */
+	synchronized void retry(TagOperation op) {
+		running.remove(op);
+		if (!cancelled.remove(op))
+			pending.add(0, op);
+	}
+
+	/**
+	 * Drop every pending operation. The running ones finish, but they won't be retried.
+	 *
+	 */
+	synchronized void clear() {
+		pending.clear();
+		cancelled.addAll(running);
+	}
+
+	/**
+	 * Don't hand out any operation before the given time.
+	 * @param	time	milliseconds since the epoch.
+	 *
+	 */
+	synchronized void pauseUntil(long time) {
+		pausedUntil = Math.max(pausedUntil, time);
+	}
+
+	/**
+	 * Obtain the next time an operation that is waiting (for a retry or a pause) can run.
+	 * @param	now	the current time, in milliseconds since the epoch.
+	 * @returns the time in milliseconds since the epoch, or 0 if nothing is waiting.
+	 *
+	 */
+	synchronized long nextWakeUp(long now) {
+		if (pending.isEmpty())
+			return 0;
+		if (now < pausedUntil)
+			return pausedUntil;
+		long wakeUp = 0;
+		for (TagOperation op : pending) {
+			if (op.nextAttemptAt > now && (wakeUp == 0 || op.nextAttemptAt < wakeUp))
+				wakeUp = op.nextAttemptAt;
+		}
+		return wakeUp;
+	}
+
+	/**
+	 * Replace a provisional Guid on the pending operations, once the Evernote service 
+	 * assigned the real one.
+	 *
+	 */
+	synchronized void remapGuid(String localGuid, String guid) {
+		for (TagOperation op : pending) {
+			op.remapGuid(localGuid, guid);
+		}
+	}
+
+	/**
+	 * Is there nothing pending nor running
+	 *
+	 */
+	synchronized boolean isIdle() {
+		return pending.isEmpty() && running.isEmpty();
+	}
+
+	/**
+	 * Does an operation conflict with any pending one queued after the given position
+	 *
+	 */
+	private boolean conflictsWithAfter(int position, TagOperation op) {
+		for (int i = position + 1; i < pending.size(); i++) {
+			if (op.conflictsWith(pending.get(i)))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * An operation can run if it doesn't conflict with anything running,
+	 * or with anything queued ahead of it.
+	 *
+	 */
+	private boolean canRun(TagOperation candidate, int position) {
+		for (TagOperation op : running) {
+			if (candidate.conflictsWith(op))
+				return false;
+		}
+		for (int i = 0; i < position; i++) {
+			if (candidate.conflictsWith(pending.get(i)))
+				return false;
+		}
+		return true;
+	}
+}
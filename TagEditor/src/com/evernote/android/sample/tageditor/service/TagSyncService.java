@@ -1,32 +1,70 @@
 package com.evernote.android.sample.tageditor.service;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import android.app.IntentService;
+import android.app.Service;
 import android.content.Intent;
+import android.os.IBinder;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.Handler;
+import android.preference.PreferenceManager;
+import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.evernote.android.sample.tageditor.data.TagChangeSet;
 import com.evernote.android.sample.tageditor.data.TagsDb;
 import com.evernote.android.sample.tageditor.utils.TagEditorUtil;
 import com.evernote.client.oauth.android.EvernoteSession;
+import com.evernote.edam.error.EDAMNotFoundException;
 import com.evernote.edam.notestore.NoteStore.Client;
+import com.evernote.edam.notestore.SyncChunk;
+import com.evernote.edam.notestore.SyncChunkFilter;
+import com.evernote.edam.notestore.SyncState;
 import com.evernote.edam.type.Tag;
 import com.evernote.thrift.transport.TTransportException;
 
 /**
  * Sync service that handles all the communication with the Evernote API
- * <p> We extend an IntentService to implement our sync service, because it 
- * implements a "work queue processor" pattern which fits our exact usage scenario.</p>
- * <p>The fact that it can be started as needed, handles each Intent using 
- * a worker thread, and stops itself when it runs out of work, makes it the perfect choice</p>
+ * <p> It implements a "work queue processor" pattern: it can be started as needed, 
+ * handles each Intent on a worker thread, and stops itself when it runs out of work.</p>
+ * <p>Incoming intents go through a {@link TagOperationQueue} first, so repeated syncs and 
+ * edits made in quick succession are coalesced before they reach the network. Operations 
+ * on unrelated tags then run in parallel on a small pool of workers, while operations on 
+ * the same tag (or on a parent and its children) keep the order in which they arrived.</p>
+ * <p>Edits are applied to the local database right away, flagged as pending, and stored 
+ * on an outbox (see {@link TagsDb#createLocalTag(String, String, String)}), so the list 
+ * shows them without waiting for the network. The workers then send them to the Evernote 
+ * service and reconcile the Guids and updateSequenceNums it returns. Operations left on 
+ * the outbox (because the service was killed, or they failed) are sent again the next 
+ * time the service starts.</p>
+ * <p>Failed operations are retried with backoff (see {@link RetryPolicy}), and a rate limit 
+ * error pauses the whole queue for as long as the Evernote service asks. An operation the 
+ * service won't accept is dropped, and a full sync brings back the tags as the service has them.</p>
+ * <p>Bulk operations ({@link Task#BULK_DELETE} and {@link Task#BULK_MOVE}, with the tags on 
+ * {@link #EXTRA_TAG_GUIDS}) are written locally in a single transaction and split into one 
+ * operation per tag, which the workers send in parallel. The outcome is broadcast once, when 
+ * the whole batch is done. {@link Task#DELETE_SUBTREE} works the same way, with the tag on
+ * {@link #EXTRA_TAG_GUID} and all its descendants.</p>
+ * <p>{@link Task#RESET} is sent when the user logs out or another user logs in: the queue 
+ * and the outbox are dropped along with the local tags, so nothing of the previous user 
+ * reaches the new account.</p>
+ * <p>Outcomes are sent with {@link LocalBroadcastManager}, so they never leave our process,
+ * along with the tags they changed (see {@link TagChangeSet#writeTo(Intent)}).</p>
  * 
  * @author Juan Gomez
  * @version 1.0.0
  * @since December 2, 2012
  * 
  */
-public class TagSyncService extends IntentService {
+public class TagSyncService extends Service {
 
 	// Name of this application, for logging
 	private static final String TAG = "TagSyncService";
@@ -34,170 +72,732 @@ public class TagSyncService extends IntentService {
 	// Used to interact with the Evernote web service
 	private EvernoteSession mEvernoteSession;
 
+	// Note Store clients, reused across operations. They outlive the service, so a new
+	// burst of work can still use the connections kept alive by the previous one
+	private static NoteStoreClientHolder noteStoreClients;
+
 	// Reference to our DB 
 	private TagsDb datasource;
 
+	// Operations waiting to be performed
+	private final TagOperationQueue queue = new TagOperationQueue();
+
+	// Maximum number of operations we send to the Evernote service at the same time
+	private static final int MAX_CONCURRENT_OPERATIONS = 4;
+
+	// Workers that perform the operations
+	private ExecutorService executor;
+
+	// Applies the edits to the local database, one at a time in the order they arrived
+	private ExecutorService localWriter;
+
+	// Number of intents still being written locally, we can't stop until they are queued
+	private final AtomicInteger intake = new AtomicInteger();
+
+	// Id of the last start request, so we only stop once we've handled all of them
+	private volatile int lastStartId;
+
+	// Wakes the queue up when a retry is due, or a rate limit is over
+	private Handler handler;
+	private final Runnable wakeUp = new Runnable() {
+		@Override
+		public void run() {
+			dispatch();
+			stopIfIdle();
+		}
+	};
+
+	// Prefix of the provisional Guids of the tags created locally
+	static final String LOCAL_GUID_PREFIX = "local:";
+
 	// Constants to coordinate the work
 	public static final String EXTRA_CURRENT_TASK = "currentTask";
 
 	public static final String EXTRA_TAG_PARENT = "parentGuid";
 	public static final String EXTRA_TAG_GUID = "guid";
 	public static final String EXTRA_TAG_NAME = "name";
+	public static final String EXTRA_FULL_SYNC = "fullSync";
+	// ArrayList with the Guids of the tags of a bulk operation
+	public static final String EXTRA_TAG_GUIDS = "guids";
+
+	// Keys used to persist the state of the last successful sync
+	public static final String PREF_LAST_UPDATE_COUNT = "lastUpdateCount";
+	public static final String PREF_LAST_SYNC_TIME = "lastSyncTime";
+	// Time (wall clock) until which the Evernote service asked us to stop sending requests
+	public static final String PREF_RATE_LIMITED_UNTIL = "rateLimitedUntil";
+
+	// Maximum number of entries we request on each sync chunk
+	private static final int MAX_SYNC_ENTRIES = 500;
+
+	// Maximum number of changed Guids sent with a sync broadcast, a bigger sync is 
+	// reported as an incomplete change set
+	private static final int MAX_REPORTED_CHANGES = 1000;
 
 	public static final String ACTION_COMPLETED = "com.evernote.android.sample.tageditor.service.action.ACTION_COMPLETED";
 	public static final String ACTION_FAILED = "com.evernote.android.sample.tageditor.service.action.ACTION_FAILED";
+	public static final String ACTION_PROGRESS = "com.evernote.android.sample.tageditor.service.action.ACTION_PROGRESS";
+	// Sent when an edit is written to the local database, before it reaches the Evernote service
+	public static final String ACTION_LOCAL_CHANGE = "com.evernote.android.sample.tageditor.service.action.ACTION_LOCAL_CHANGE";
+
+	// Extras sent with ACTION_PROGRESS, the sync is done when progress reaches max
+	public static final String EXTRA_PROGRESS = "progress";
+	public static final String EXTRA_PROGRESS_MAX = "progressMax";
 
 	// Type of task being perform by our service
 	public static enum Task {
-		SYNC, DELETE, CREATE, UPDATE
+		SYNC, DELETE, CREATE, UPDATE, BULK_DELETE, BULK_MOVE, DELETE_SUBTREE, RESET
 	};
 
+	/**
+	 * Drop the Note Store clients kept for the current user. Called when the user logs out 
+	 * or logs in, so the next operation connects with the new session.
+	 * 
+	 */
+	public static synchronized void resetNoteStoreClients() {
+		if (noteStoreClients != null)
+			noteStoreClients.reset();
+	}
+
 	@Override
 	public void onCreate() {
 		// We open the database and start a session with the Evernote service
 		datasource = TagsDb.INSTANCE;
-		datasource.open(getApplicationContext());
+		datasource.acquire(getApplicationContext());
 		setupSession();
+		synchronized (TagSyncService.class) {
+			if (noteStoreClients == null)
+				noteStoreClients = new NoteStoreClientHolder(mEvernoteSession);
+		}
+		executor = Executors.newFixedThreadPool(MAX_CONCURRENT_OPERATIONS);
+		localWriter = Executors.newSingleThreadExecutor();
+		handler = new Handler();
+		// a rate limit outlives the service that got it
+		SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+		queue.pauseUntil(sp.getLong(PREF_RATE_LIMITED_UNTIL, 0));
 		super.onCreate();
-	}
-
-	public TagSyncService() {
-		super("TagSyncService");
-	}
-
-	@Override
-	protected void onHandleIntent(Intent intent) {
-		Task currentTask = null;
-		// If the intent is empty or has no "current task"set, we ignore this call
-		if (intent != null && intent.getExtras() != null) {
-
-			if (intent.hasExtra(EXTRA_CURRENT_TASK)) {
+		// whatever was left on the outbox goes ahead of the new work
+		intake.incrementAndGet();
+		localWriter.execute(new Runnable() {
+			@Override
+			public void run() {
 				try {
-					currentTask = (Task) intent.getExtras().get(EXTRA_CURRENT_TASK);
-				} catch (Exception e) {
-					return;
+					loadOutbox();
+					dispatch();
+				} finally {
+					intake.decrementAndGet();
+					stopIfIdle();
 				}
 			}
+		});
+	}
 
-			if (currentTask == null)
-				return;
-
-			Client noteStore = null;
-			String action = "";
-			Intent responseIntent = new Intent();
+	@Override
+	public void onDestroy() {
+		// we're out of work, so we let go of the workers and the database
+		handler.removeCallbacks(wakeUp);
+		localWriter.shutdown();
+		executor.shutdown();
+		datasource.release();
+		super.onDestroy();
+	}
 
+	@Override
+	public IBinder onBind(Intent intent) {
+		// we're a started service only
+		return null;
+	}
 
-			try {
-				// Create an Evernote Note Store to perform actions on the Tags
-				noteStore = mEvernoteSession.createNoteStore();
-			} catch (TTransportException e) {
-				Log.e(TAG, "Can't get noteStore", e);
-				responseIntent.putExtra(EXTRA_CURRENT_TASK, currentTask);
-				action = ACTION_FAILED;
-				responseIntent.setAction(action);
-				sendBroadcast(responseIntent);
-			}
-			switch(currentTask) {
-			case SYNC:
-				try {
-					if (mEvernoteSession.isLoggedIn() && noteStore != null) {
-						List<Tag> tags = noteStore.listTags(mEvernoteSession.getAuthToken());
-						// If the operation was successful with the service, 
-						// we perform it on our local database
-						datasource.storeRemoteTags(tags);
-						action = ACTION_COMPLETED;
-					}
-				} catch(Exception e) {
-					Log.e(TAG, "Can't get list of tags", e);
-					action = ACTION_FAILED;
-				}
-				break;
-			case CREATE:
-				if (intent.hasExtra(EXTRA_TAG_NAME)) {
+	/**
+	 * Intents arrive here on the main thread. The local writer applies the operation to
+	 * the database and adds it to our coalescing queue, so that redundant work gets dropped 
+	 * while it's still waiting, and then we hand whatever can run to the workers.
+	 * 
+	 */
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		final TagOperationBatch batch = TagOperationBatch.fromIntent(intent);
+		final TagOperation op = (batch == null) ? TagOperation.fromIntent(intent) : null;
+		if (batch != null) {
+			intake.incrementAndGet();
+			lastStartId = startId;
+			localWriter.execute(new Runnable() {
+				@Override
+				public void run() {
 					try {
-						if (mEvernoteSession.isLoggedIn() && noteStore != null) {
-							Tag temp_tag = new Tag();
-							String name = (String) intent.getExtras().get(EXTRA_TAG_NAME);
-							temp_tag.setName(name);
-							String parentGuid = "";
-							// If a parent guid is included we set it on the tag
-							if (intent.hasExtra(EXTRA_TAG_PARENT)) {
-								parentGuid = (String) intent.getExtras().get(EXTRA_TAG_PARENT);
-								temp_tag.setParentGuid(parentGuid);
+						if (applyLocally(batch)) {
+							for (TagOperation batched : batch.operations) {
+								enqueue(batched);
 							}
-							Tag tag = noteStore.createTag(mEvernoteSession.getAuthToken(), temp_tag);
-							// If the operation was successful with the service, 
-							// we perform it on our local database
-							datasource.insertTag(tag);
-							action = ACTION_COMPLETED;
 						}
-					} catch(Exception e) {
-						Log.e(TAG, "Can't create new tag", e);
-						action = ACTION_FAILED;
+						dispatch();
+					} finally {
+						intake.decrementAndGet();
+						stopIfIdle();
 					}
 				}
-				break;
-			case DELETE:
-				if (intent.hasExtra(EXTRA_TAG_GUID)) {
+			});
+		} else if (op != null) {
+			// before lastStartId moves, so a worker can't stop us before the operation is queued
+			intake.incrementAndGet();
+			lastStartId = startId;
+			localWriter.execute(new Runnable() {
+				@Override
+				public void run() {
 					try {
-						if (mEvernoteSession.isLoggedIn() && noteStore != null) {
-							String guid = (String) intent.getExtras().get(EXTRA_TAG_GUID);
-							noteStore.untagAll(mEvernoteSession.getAuthToken(), guid);
-							noteStore.expungeTag(mEvernoteSession.getAuthToken(), guid);
-							// If the operation was successful with the service, 
-							// we perform it on our local database
-							datasource.deleteTag(guid);
-							action = ACTION_COMPLETED;
-						}
-					} catch(Exception e) {
-						Log.e(TAG, "Can't delete tag", e);
-						action = ACTION_FAILED;
+						if (op.task == Task.RESET)
+							reset();
+						else if (applyLocally(op))
+							enqueue(op);
+						dispatch();
+					} finally {
+						intake.decrementAndGet();
+						stopIfIdle();
 					}
 				}
+			});
+		} else {
+			lastStartId = startId;
+			stopIfIdle();
+		}
+		return START_NOT_STICKY;
+	}
+
+	/**
+	 * Forget the work of the previous user: the pending operations, the outbox and the 
+	 * local tags. The operations already running can't be stopped, but they aren't retried.
+	 * 
+	 */
+	private void reset() {
+		queue.clear();
+		datasource.cleanDb();
+	}
+
+	/**
+	 * Write an operation to the local database and the outbox, so the user sees it
+	 * right away. A SYNC has nothing to write.
+	 * @returns {@link true} if the operation should be sent to the Evernote service.
+	 * 
+	 */
+	private boolean applyLocally(TagOperation op) {
+		if (op.task == Task.SYNC)
+			return true;
+		// we remember the current parent of the tag, so the operation waits for 
+		// any pending work on it
+		if (op.task != Task.CREATE) {
+			Tag current = datasource.getTagByGuid(op.guid);
+			if (current != null)
+				op.currentParentGuid = current.getParentGuid();
+		}
+		switch (op.task) {
+		case CREATE:
+			op.outboxId = datasource.createLocalTag(op.guid, op.name, op.hasParent ? op.parentGuid : null);
+			break;
+		case UPDATE:
+			// the service would reject a tag under itself or one of its children, so we don't 
+			// waste a round trip on it
+			if (op.hasParent && isSelfOrAncestor(op.guid, op.parentGuid)) {
+				Log.w(TAG, "Can't move a tag under its own subtree " + op);
 				break;
-			case UPDATE:
-				if (intent.hasExtra(EXTRA_TAG_GUID)) {
+			}
+			op.outboxId = datasource.updateLocalTag(op.guid, op.name, op.hasParent, op.parentGuid, 
+					op.currentParentGuid);
+			break;
+		case DELETE:
+			op.outboxId = datasource.deleteLocalTag(op.guid, op.currentParentGuid);
+			break;
+		default:
+			break;
+		}
+		Intent responseIntent = new Intent();
+		responseIntent.putExtra(EXTRA_CURRENT_TASK, op.task);
+		responseIntent.setAction((op.outboxId >= 0) ? ACTION_LOCAL_CHANGE : ACTION_FAILED);
+		if (op.outboxId >= 0) {
+			TagChangeSet changes = new TagChangeSet();
+			addChange(changes, op);
+			changes.writeTo(responseIntent);
+		}
+		broadcast(responseIntent);
+		return op.outboxId >= 0;
+	}
+
+	/**
+	 * Write a bulk operation to the local database and the outbox, in a single transaction.
+	 * Tags that aren't on the database anymore are left out of the batch.
+	 * <p>When deleting a subtree, the descendants are added to the batch ahead of the root. 
+	 * The deletes of the subtree don't conflict with each other, so they're all sent in parallel.</p>
+	 * @returns {@link true} if the operations of the batch should be sent to the Evernote service.
+	 * 
+	 */
+	private boolean applyLocally(TagOperationBatch batch) {
+		if (batch.task == Task.DELETE_SUBTREE) {
+			TagOperation root = batch.operations.remove(0);
+			for (Tag descendant : datasource.getDescendants(root.guid)) {
+				batch.add(Task.DELETE, descendant.getGuid());
+			}
+			batch.operations.add(root);
+		}
+		List<Tag> tags = new ArrayList<Tag>();
+		for (Iterator<TagOperation> it = batch.operations.iterator(); it.hasNext();) {
+			TagOperation op = it.next();
+			Tag current = datasource.getTagByGuid(op.guid);
+			// we can't move a tag under itself or one of its children either
+			if (current == null || (op.hasParent && isSelfOrAncestor(op.guid, op.parentGuid))) {
+				it.remove();
+				continue;
+			}
+			op.name = current.getName();
+			op.currentParentGuid = current.getParentGuid();
+			tags.add(current);
+		}
+		batch.begin();
+		long[] ids = null;
+		if (!tags.isEmpty()) {
+			ids = (batch.task == Task.BULK_MOVE) ? datasource.moveLocalTags(tags, batch.operations.get(0).parentGuid)
+					: datasource.deleteLocalTags(tags);
+		}
+		if (ids != null) {
+			for (int i = 0; i < ids.length; i++) {
+				batch.operations.get(i).outboxId = ids[i];
+			}
+		}
+		Intent responseIntent = new Intent();
+		responseIntent.putExtra(EXTRA_CURRENT_TASK, batch.task);
+		responseIntent.setAction((ids != null) ? ACTION_LOCAL_CHANGE : ACTION_FAILED);
+		if (ids != null)
+			getChanges(batch).writeTo(responseIntent);
+		broadcast(responseIntent);
+		return ids != null;
+	}
+
+	/**
+	 * Record the tag changed by an operation on a change set.
+	 * 
+	 */
+	private static void addChange(TagChangeSet changes, TagOperation op) {
+		switch (op.task) {
+		case CREATE:
+			changes.addInserted(op.guid);
+			break;
+		case UPDATE:
+			changes.addUpdated(op.guid);
+			break;
+		case DELETE:
+			changes.addDeleted(op.guid);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Obtain the tags changed by the operations of a batch.
+	 * 
+	 */
+	private static TagChangeSet getChanges(TagOperationBatch batch) {
+		TagChangeSet changes = new TagChangeSet();
+		for (TagOperation op : batch.operations) {
+			addChange(changes, op);
+		}
+		return changes;
+	}
+
+	/**
+	 * Send a broadcast to the activity. They stay within our process, so the Guids 
+	 * they carry aren't seen by other apps, and no Intent needs to be serialized.
+	 * 
+	 */
+	private void broadcast(Intent intent) {
+		LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+	}
+
+	/**
+	 * Is a tag the given tag, or one of its ancestors.
+	 * 
+	 */
+	private boolean isSelfOrAncestor(String guid, String tagGuid) {
+		if (tagGuid == null)
+			return false;
+		return tagGuid.equals(guid) || datasource.isDescendant(tagGuid, guid);
+	}
+
+	/**
+	 * Record that an operation of a batch is done, and broadcast the outcome of the
+	 * batch if it was the last one.
+	 * 
+	 */
+	private void finishBatched(TagOperation op, boolean success) {
+		if (op.batch == null || !op.batch.finish(success))
+			return;
+		Intent responseIntent = new Intent(op.batch.hasFailed() ? ACTION_FAILED : ACTION_COMPLETED);
+		responseIntent.putExtra(EXTRA_CURRENT_TASK, op.batch.task);
+		getChanges(op.batch).writeTo(responseIntent);
+		broadcast(responseIntent);
+	}
+
+	/**
+	 * Add an operation to the queue, and drop from the outbox whatever it was coalesced with.
+	 * 
+	 */
+	private void enqueue(TagOperation op) {
+		List<TagOperation> dropped = new ArrayList<TagOperation>();
+		boolean queued = queue.offer(op, dropped);
+		if (!queued)
+			Log.d(TAG, "Coalesced " + op);
+		List<Long> droppedIds = new ArrayList<Long>();
+		for (TagOperation coalesced : dropped) {
+			if (coalesced.outboxId >= 0)
+				droppedIds.add(coalesced.outboxId);
+			// the work of a coalesced operation is done by the one that absorbed it
+			finishBatched(coalesced, true);
+		}
+		datasource.removePendingOperations(droppedIds);
+		// earlier updates of the same tag were folded into this one
+		if (queued && op.task == Task.UPDATE && !dropped.isEmpty())
+			datasource.updatePendingOperation(op.outboxId, op.name, op.hasParent, op.parentGuid, 
+					op.currentParentGuid);
+	}
+
+	/**
+	 * Queue the operations left on the outbox by a previous run of the service.
+	 * 
+	 */
+	private void loadOutbox() {
+		Cursor cursor = datasource.getPendingOperations();
+		try {
+			while (cursor.moveToNext()) {
+				TagOperation op = TagOperation.fromCursor(cursor);
+				if (op != null)
+					enqueue(op);
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "Couldn't load the outbox", e);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Hand every operation that can run right now to the workers, and set up a wake up 
+	 * for the ones waiting on a retry or a rate limit.
+	 * 
+	 */
+	private synchronized void dispatch() {
+		if (executor.isShutdown())
+			return;
+		long now = System.currentTimeMillis();
+		TagOperation op;
+		while ((op = queue.pollRunnable(now)) != null) {
+			final TagOperation runnable = op;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
 					try {
-						if (mEvernoteSession.isLoggedIn() && noteStore != null) {
-							Tag temp_tag = new Tag();
-							String name = (String) intent.getExtras().get(EXTRA_TAG_NAME);
-							String guid = (String) intent.getExtras().get(EXTRA_TAG_GUID);
-							temp_tag.setName(name);
-							temp_tag.setGuid(guid);
-							String parentGuid = "";
-							if (intent.hasExtra(EXTRA_TAG_PARENT)) {
-								parentGuid = (String) intent.getExtras().get(EXTRA_TAG_PARENT);
-								// if the parent tag is the empty tag, we set the parent guid to null
-								parentGuid = parentGuid.equalsIgnoreCase(TagsDb.EMPTY_TAG_LIST_ITEM) ? null : parentGuid;
-								temp_tag.setParentGuid(parentGuid);
-							}
-							// if the update succeeds we get an updateSequenceNum 
-							// so we set it to the temp tag
-							int updateSequenceNum = noteStore.updateTag(mEvernoteSession.getAuthToken(), temp_tag);
-							temp_tag.setUpdateSequenceNum(updateSequenceNum);
-							temp_tag.setUpdateSequenceNumIsSet(true);
-							// If the operation was successful with the service, 
-							// we perform it on our local database
-							datasource.updateTag(temp_tag);
-							action = ACTION_COMPLETED;
-						}
-					} catch(Exception e) {
-						Log.e(TAG, "Can't update new tag", e);
-						action = ACTION_FAILED;
+						handleOperation(runnable);
+					} finally {
+						// finishing an operation can unblock the ones waiting for it
+						queue.complete(runnable);
+						dispatch();
+						stopIfIdle();
 					}
 				}
-				break;
-			default:
-				break;
+			});
+		}
+		handler.removeCallbacks(wakeUp);
+		long next = queue.nextWakeUp(now);
+		if (next > 0)
+			handler.postDelayed(wakeUp, next - now);
+	}
+
+	/**
+	 * Stop the service once there's nothing being written, pending or running. If a new start request arrived
+	 * in the meantime, stopSelf(int) ignores the call and we keep going.
+	 * 
+	 */
+	private void stopIfIdle() {
+		if (intake.get() == 0 && queue.isIdle())
+			stopSelf(lastStartId);
+	}
+
+	/**
+	 * Perform an operation with the Evernote service and, if it succeeds, reconcile the local 
+	 * database with the response and remove the operation from the outbox. If it fails we 
+	 * retry it later, or give up on it (see {@link #handleFailure(TagOperation, Exception)}).
+	 * Our main activity gets a broadcast with the outcome.
+	 * 
+	 */
+	private void handleOperation(TagOperation op) {
+		Task currentTask = op.task;
+		Client noteStore = null;
+		String action = "";
+		Intent responseIntent = new Intent();
+		// the tags that changed on the local database, sent with the broadcast
+		TagChangeSet changes = new TagChangeSet();
+
+
+		// set when the operation fails, so we can tell if the Note Store is still usable
+		Exception failure = null;
+
+		try {
+			// Get an Evernote Note Store to perform actions on the Tags
+			noteStore = noteStoreClients.acquire();
+		} catch (TTransportException e) {
+			Log.e(TAG, "Can't get noteStore", e);
+			failure = e;
+			action = ACTION_FAILED;
+		}
+		switch(currentTask) {
+		case SYNC:
+			try {
+				if (mEvernoteSession.isLoggedIn() && noteStore != null) {
+					action = syncTags(noteStore, op.fullSync, changes) ? ACTION_COMPLETED : ACTION_FAILED;
+				}
+			} catch(Exception e) {
+				Log.e(TAG, "Can't get list of tags", e);
+				failure = e;
+				action = ACTION_FAILED;
 			}
-			// if there's no action to report we don't send a broadcast
-			if(!TextUtils.isEmpty(action)) {
-				// If there's an action, we send a broadcast that gets captured by our main activity
-				responseIntent.setAction(action);
-				responseIntent.putExtra(EXTRA_CURRENT_TASK, currentTask);
-				sendBroadcast(responseIntent);
+			break;
+		case CREATE:
+			try {
+				if (mEvernoteSession.isLoggedIn() && noteStore != null) {
+					Tag temp_tag = new Tag();
+					temp_tag.setName(op.name);
+					// If a parent guid is included we set it on the tag
+					if (op.hasParent)
+						temp_tag.setParentGuid(op.parentGuid);
+					Tag tag = noteStore.createTag(mEvernoteSession.getAuthToken(), temp_tag);
+					// If the operation was successful with the service, the tag 
+					// and the operations waiting for it get the real Guid
+					datasource.confirmCreate(op.outboxId, op.guid, tag);
+					queue.remapGuid(op.guid, tag.getGuid());
+					changes.addReplaced(op.guid, tag.getGuid());
+					op.guid = tag.getGuid();
+					action = ACTION_COMPLETED;
+				}
+			} catch(Exception e) {
+				Log.e(TAG, "Can't create new tag", e);
+				failure = e;
+				action = ACTION_FAILED;
 			}
+			break;
+		case DELETE:
+			try {
+				if (mEvernoteSession.isLoggedIn() && noteStore != null) {
+					noteStore.untagAll(mEvernoteSession.getAuthToken(), op.guid);
+					noteStore.expungeTag(mEvernoteSession.getAuthToken(), op.guid);
+					// If the operation was successful with the service, 
+					// we remove it from the outbox
+					datasource.confirmDelete(op.outboxId);
+					changes.addDeleted(op.guid);
+					action = ACTION_COMPLETED;
+				}
+			} catch(EDAMNotFoundException e) {
+				// the tag is already gone, which is what we wanted
+				datasource.confirmDelete(op.outboxId);
+				changes.addDeleted(op.guid);
+				action = ACTION_COMPLETED;
+			} catch(Exception e) {
+				Log.e(TAG, "Can't delete tag", e);
+				failure = e;
+				action = ACTION_FAILED;
+			}
+			break;
+		case UPDATE:
+			try {
+				if (mEvernoteSession.isLoggedIn() && noteStore != null) {
+					Tag temp_tag = new Tag();
+					temp_tag.setName(op.name);
+					temp_tag.setGuid(op.guid);
+					if (op.hasParent)
+						temp_tag.setParentGuid(op.parentGuid);
+					// if the update succeeds we get an updateSequenceNum 
+					int updateSequenceNum = noteStore.updateTag(mEvernoteSession.getAuthToken(), temp_tag);
+					// If the operation was successful with the service, 
+					// we store the new updateSequenceNum on our local database
+					datasource.confirmUpdate(op.outboxId, op.guid, updateSequenceNum);
+					changes.addUpdated(op.guid);
+					if (datasource.isSkippedBySync(op.guid))
+						refreshTag(noteStore, op.guid, changes);
+					action = ACTION_COMPLETED;
+				}
+			} catch(Exception e) {
+				Log.e(TAG, "Can't update new tag", e);
+				failure = e;
+				action = ACTION_FAILED;
+			}
+			break;
+		default:
+			break;
+		}
+		// the Note Store is kept for the next operation, unless its transport failed
+		boolean staleNoteStore = false;
+		if (noteStore != null)
+			staleNoteStore = noteStoreClients.release(noteStore, failure instanceof TTransportException);
+		if (staleNoteStore) {
+			// the server dropped the connection of a reused client, which doesn't count as an attempt
+			Log.d(TAG, "Retrying on a new Note Store " + op);
+			scheduleRetry(op, System.currentTimeMillis());
+			action = "";
+		} else if (failure != null && handleFailure(op, failure)) {
+			// we only report a failure once we give up on the operation
+			action = "";
+		} else if (op.batch != null) {
+			// operations of a batch are reported together, once they're all done
+			finishBatched(op, ACTION_COMPLETED.equals(action));
+			action = "";
+		}
+		// if there's no action to report we don't send a broadcast
+		if(!TextUtils.isEmpty(action)) {
+			// If there's an action, we send a broadcast that gets captured by our main activity
+			responseIntent.setAction(action);
+			responseIntent.putExtra(EXTRA_CURRENT_TASK, currentTask);
+			changes.writeTo(responseIntent);
+			broadcast(responseIntent);
+		}
+	}
+
+	/**
+	 * Decide what to do with an operation that failed.
+	 * <p>On a rate limit error the whole queue waits for as long as the Evernote service asked,
+	 * and the operation runs again after that. Other transient errors are retried with backoff,
+	 * up to {@link RetryPolicy#MAX_ATTEMPTS}. Otherwise we drop the operation from the outbox
+	 * and queue a full sync, so the local database matches the service again.</p>
+	 * @returns {@link true} if the operation will be retried.
+	 * 
+	 */
+	private boolean handleFailure(TagOperation op, Exception failure) {
+		long now = System.currentTimeMillis();
+		long rateLimitDelay = RetryPolicy.rateLimitDelay(failure);
+		if (rateLimitDelay >= 0) {
+			Log.w(TAG, "Rate limited for " + rateLimitDelay + "ms");
+			queue.pauseUntil(now + rateLimitDelay);
+			PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).edit()
+					.putLong(PREF_RATE_LIMITED_UNTIL, now + rateLimitDelay).apply();
+			// the operation didn't get a chance to run, so it doesn't count as an attempt
+			scheduleRetry(op, now + rateLimitDelay);
+			return true;
+		}
+		if (RetryPolicy.isRetryable(failure) && op.attempts + 1 < RetryPolicy.MAX_ATTEMPTS) {
+			op.attempts++;
+			scheduleRetry(op, now + RetryPolicy.backoff(op.attempts));
+			return true;
 		}
+		Log.w(TAG, "Giving up on " + op);
+		if (op.outboxId >= 0) {
+			datasource.abandonPendingOperation(op.outboxId, op.guid);
+			TagOperation sync = new TagOperation(Task.SYNC);
+			sync.fullSync = true;
+			enqueue(sync);
+		}
+		return false;
+	}
+
+	/**
+	 * Put an operation back on the queue (and the outbox) to run again at the given time.
+	 * 
+	 */
+	private void scheduleRetry(TagOperation op, long nextAttemptAt) {
+		op.nextAttemptAt = nextAttemptAt;
+		if (op.outboxId >= 0)
+			datasource.scheduleRetry(op.outboxId, op.attempts, op.nextAttemptAt);
+		queue.retry(op);
+	}
+
+	/**
+	 * Bring the local database up to date with the Evernote service.
+	 * <p>We keep the updateCount of the last sync and only ask the service for the
+	 * tags that changed (or were expunged) after it. If we don't have a previous
+	 * sync, or the service tells us our state is too old, we fall back to a full sync.</p>
+	 * <p>Either way, tags are requested in chunks of {@link #MAX_SYNC_ENTRIES} and each chunk 
+	 * is committed on its own, so we never hold the whole account in memory or lock the 
+	 * database for the whole sync. We broadcast {@link #ACTION_PROGRESS} after each chunk.</p>
+	 * @param	noteStore	The {@link Client} used to talk to the Evernote service.
+	 * @param	forceFullSync	{@link true} to ignore the persisted sync state.
+	 * @param	changes	the {@link TagChangeSet} where we record the tags that changed.
+	 * @returns {@link true} if the local database was updated successfully.
+	 * 
+	 */
+	private boolean syncTags(Client noteStore, boolean forceFullSync, TagChangeSet changes) throws Exception {
+		String authToken = mEvernoteSession.getAuthToken();
+		SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+		int lastUpdateCount = sp.getInt(PREF_LAST_UPDATE_COUNT, 0);
+		long lastSyncTime = sp.getLong(PREF_LAST_SYNC_TIME, 0);
+
+		SyncState syncState = noteStore.getSyncState(authToken);
+		boolean fullSync = forceFullSync || lastUpdateCount <= 0 || lastSyncTime < syncState.getFullSyncBefore()
+				|| lastUpdateCount > syncState.getUpdateCount();
+		boolean success = true;
+
+		// On a full sync we get every tag, starting from the beginning of the account.
+		// Otherwise we ask only for the tags that changed since our last sync
+		SyncChunkFilter filter = new SyncChunkFilter();
+		filter.setIncludeTags(true);
+		filter.setIncludeExpunged(!fullSync);
+		int afterUSN = fullSync ? 0 : lastUpdateCount;
+		if (fullSync)
+			success = datasource.beginFullSync();
+
+		while (success && afterUSN < syncState.getUpdateCount()) {
+			SyncChunk chunk = noteStore.getFilteredSyncChunk(authToken, afterUSN, MAX_SYNC_ENTRIES, filter);
+			TagChangeSet chunkChanges = fullSync ? datasource.applyFullSyncChunk(chunk.getTags())
+					: datasource.applyTagChanges(chunk.getTags(), chunk.getExpungedTags());
+			success = chunkChanges != null;
+			changes.addAll(chunkChanges, MAX_REPORTED_CHANGES);
+			// an empty chunk means there's nothing left for us after afterUSN
+			if (!chunk.isSetChunkHighUSN())
+				break;
+			afterUSN = chunk.getChunkHighUSN();
+			broadcastProgress(afterUSN, syncState.getUpdateCount());
+		}
+
+		// tags we didn't receive on a full sync are gone from the account
+		if (success && fullSync) {
+			TagChangeSet removed = datasource.finishFullSync();
+			success = removed != null;
+			changes.addAll(removed, MAX_REPORTED_CHANGES);
+		}
+
+		if (success) {
+			// we only move our high-water mark forward if everything was stored
+			SharedPreferences.Editor edit = sp.edit();
+			edit.putInt(PREF_LAST_UPDATE_COUNT, syncState.getUpdateCount());
+			edit.putLong(PREF_LAST_SYNC_TIME, syncState.getCurrentTime());
+			edit.apply();
+		}
+		return success;
+	}
+
+	/**
+	 * Fetch a tag that a sync skipped while it had operations on the outbox, so we get
+	 * the changes made to it elsewhere. If we can't, a full sync will bring them.
+	 * 
+	 */
+	private void refreshTag(Client noteStore, String guid, TagChangeSet changes) {
+		try {
+			Tag tag = noteStore.getTag(mEvernoteSession.getAuthToken(), guid);
+			TagChangeSet refreshed = datasource.applyTagChanges(Collections.singletonList(tag), null);
+			if (refreshed != null) {
+				changes.addAll(refreshed, MAX_REPORTED_CHANGES);
+				return;
+			}
+		} catch (Exception e) {
+			Log.w(TAG, "Couldn't fetch " + guid + " again", e);
+		}
+		TagOperation sync = new TagOperation(Task.SYNC);
+		sync.fullSync = true;
+		enqueue(sync);
+	}
+
+	/**
+	 * Let our main activity know how far along the current sync is.
+	 * 
+	 */
+	private void broadcastProgress(int progress, int max) {
+		Intent progressIntent = new Intent(ACTION_PROGRESS);
+		progressIntent.putExtra(EXTRA_CURRENT_TASK, Task.SYNC);
+		progressIntent.putExtra(EXTRA_PROGRESS, progress);
+		progressIntent.putExtra(EXTRA_PROGRESS_MAX, max);
+		broadcast(progressIntent);
 	}
 
 	/**
@@ -6,20 +6,24 @@ import android.app.Dialog;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
+import android.database.Cursor;
 import android.os.Bundle;
 import android.support.v4.app.DialogFragment;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemSelectedListener;
 import android.widget.EditText;
+import android.widget.Filter;
+import android.widget.FilterQueryProvider;
 import android.widget.Spinner;
 
 import com.evernote.android.sample.tageditor.R;
 import com.evernote.android.sample.tageditor.data.TagSpinnerAdapter;
 import com.evernote.android.sample.tageditor.data.TagsDb;
 import com.evernote.android.sample.tageditor.service.TagSyncService;
-import com.evernote.edam.type.Tag;
 
 /**
  * Dialog Fragment for the Add/Edit dialog
@@ -45,7 +49,10 @@ public class AddEditTagDialogFragment extends DialogFragment implements OnItemSe
 	private String guid;
 	private String currentParentGuid;
 	private boolean isEdit = false;
-	private String newParentGuid = "";
+	// Read by the spinner filter on a background thread
+	private volatile String newParentGuid = "";
+	// Adapter of the parent spinner, we close its cursor when the dialog goes away
+	private TagSpinnerAdapter adapter;
 
 	@Override
 	public Dialog onCreateDialog(Bundle savedInstanceState) {
@@ -72,7 +79,7 @@ public class AddEditTagDialogFragment extends DialogFragment implements OnItemSe
 		// Pass null as the parent view because its going in the dialog layout
 		final View v = inflater.inflate(R.layout.add_edit, null);
 		// get the spinner widget
-		Spinner parent = (Spinner) v.findViewById(R.id.parent);
+		final Spinner parent = (Spinner) v.findViewById(R.id.parent);
 		// Determined if this tag has a parent tag
 		String parent_guid = (this.currentParentGuid != null) ? this.currentParentGuid : "";
 		// if we're editing we need to dipaly the name of the tag on the edit field
@@ -81,15 +88,53 @@ public class AddEditTagDialogFragment extends DialogFragment implements OnItemSe
 		EditText nameEditText = (EditText) v.findViewById(R.id.name);
 		nameEditText.setText(tagName);
 
-		// Create an ArrayAdapter using the a Tag list we get form the DB and 
-		// a default spinner layout
-		TagSpinnerAdapter adapter = new TagSpinnerAdapter(getActivity(), android.R.layout.simple_spinner_item, TagsDb.INSTANCE.getTagListForSpinner(guid , parent_guid));
-		// Specify the layout to use when the drop down list of choices appears
-		adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+		// Create a CursorAdapter using a cursor of the possible parents we get form the DB,
+		// rows are only read as the spinner shows them
+		final String excludedGuid = guid;
+		final String spinnerParentGuid = parent_guid;
+		adapter = new TagSpinnerAdapter(getActivity(), TagsDb.INSTANCE.getParentCandidates(excludedGuid, spinnerParentGuid, null));
+		// the filter runs the query again (on a background thread) with the text typed so far,
+		// keeping the selected parent on top so it can stay selected
+		adapter.setFilterQueryProvider(new FilterQueryProvider() {
+			@Override
+			public Cursor runQuery(CharSequence constraint) {
+				String selectedGuid = newParentGuid;
+				return TagsDb.INSTANCE.getParentCandidates(excludedGuid, 
+						(selectedGuid.length() > 0) ? selectedGuid : spinnerParentGuid, constraint);
+			}
+		});
 		// Apply the adapter to the spinner
 		parent.setAdapter(adapter);
 		// register our click listener
 		parent.setOnItemSelectedListener(this);
+		// and narrow down the list as the user types on the filter field
+		EditText filterEditText = (EditText) v.findViewById(R.id.parent_filter);
+		filterEditText.addTextChangedListener(new TextWatcher() {
+			@Override
+			public void onTextChanged(CharSequence s, int start, int before, int count) {
+				adapter.getFilter().filter(s, new Filter.FilterListener() {
+					@Override
+					public void onFilterComplete(int count) {
+						// the new cursor has other rows on each position, we select the same tag again
+						String selectedGuid = newParentGuid;
+						if (selectedGuid.length() == 0)
+							return;
+						int position = adapter.getPosition(
+								selectedGuid.equals(TagsDb.EMPTY_TAG_LIST_ITEM) ? null : selectedGuid);
+						if (position >= 0)
+							parent.setSelection(position);
+					}
+				});
+			}
+
+			@Override
+			public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+			}
+
+			@Override
+			public void afterTextChanged(Editable s) {
+			}
+		});
 
 		int title = (isEdit) ? R.string.edit_title : R.string.add_title;
 		builder.setTitle(title).setView(v)
@@ -131,14 +176,23 @@ public class AddEditTagDialogFragment extends DialogFragment implements OnItemSe
 		return builder.create();		
 	}
 
+	@Override
+	public void onDestroyView() {
+		// changing the cursor closes the old one
+		if (adapter != null)
+			adapter.changeCursor(null);
+		super.onDestroyView();
+	}
+
 	@Override
 	public void onItemSelected(AdapterView<?> parent, View view, 
 			int pos, long id) {
 		// Determine if a parent tag was selected
-		Tag t = (Tag) parent.getItemAtPosition(pos);
-		if (t != null) {
-			// if it was, set it as our new parent tag
-			this.newParentGuid = (t.getName() != TagsDb.EMPTY_TAG_LIST_ITEM) ? t.getGuid(): t.getName();
+		Cursor c = (Cursor) parent.getItemAtPosition(pos);
+		if (c != null) {
+			// if it was, set it as our new parent tag, the empty tag has no Guid
+			String selectedGuid = TagSpinnerAdapter.getGuid(c);
+			this.newParentGuid = (selectedGuid != null) ? selectedGuid : TagsDb.EMPTY_TAG_LIST_ITEM;
 		}
 	}
 
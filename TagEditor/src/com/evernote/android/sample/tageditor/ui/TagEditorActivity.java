@@ -13,6 +13,7 @@ import android.content.SharedPreferences.Editor;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.support.v4.content.LocalBroadcastManager;
 import android.support.v4.app.DialogFragment;
 import android.support.v4.app.Fragment;
 import android.text.TextUtils;
@@ -26,7 +27,9 @@ import com.actionbarsherlock.app.ActionBar;
 import com.actionbarsherlock.app.SherlockFragmentActivity;
 import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.view.MenuItem;
+import com.actionbarsherlock.widget.SearchView;
 import com.evernote.android.sample.tageditor.R;
+import com.evernote.android.sample.tageditor.data.TagChangeSet;
 import com.evernote.android.sample.tageditor.data.TagsDb;
 import com.evernote.android.sample.tageditor.service.TagSyncService;
 import com.evernote.android.sample.tageditor.service.TagSyncService.Task;
@@ -56,6 +59,8 @@ ActionBar.OnNavigationListener {
 
 	// Used to interact with the Evernote web service
 	private EvernoteSession mEvernoteSession;
+	// Action bar item holding the search box
+	private MenuItem searchItem;
 	
 
 
@@ -68,14 +73,29 @@ ActionBar.OnNavigationListener {
 
 		@Override
 		public void onReceive(Context context, Intent intent) {
-			// If the list fragment is active, we inform it of the changes, 
-			// if not, we create the fragment 
+			// Progress updates only move the progress bar, the list gets refreshed 
+			// once the sync is completed
+			if (TagSyncService.ACTION_PROGRESS.equals(intent.getAction())) {
+				int max = intent.getIntExtra(TagSyncService.EXTRA_PROGRESS_MAX, 0);
+				if (max > 0) {
+					setProgressBarVisibility(true);
+					setProgress((int) (10000L * intent.getIntExtra(TagSyncService.EXTRA_PROGRESS, 0) / max));
+				}
+				return;
+			}
+			// If the list fragment isn't there, we create it. If it is, the level it shows
+			// comes from the content provider, so we only tell it which tags changed
 			TagListFragment fragment = (TagListFragment) getSupportFragmentManager().findFragmentByTag(LIST_FRAGMENT_TAG);
 			if(fragment == null) {
 				startListFragment();
 			} else {
-				fragment.notifyDataSetChanged();
+				TagChangeSet changes = TagChangeSet.fromIntent(intent);
+				if (changes != null && !changes.isEmpty())
+					fragment.onTagsChanged(changes);
 			}
+			// Local changes are only shown, we let the user know once they reach Evernote
+			if (TagSyncService.ACTION_LOCAL_CHANGE.equals(intent.getAction()))
+				return;
 			// Get the task that was completed at the sync service
 			Task currentTask = (Task) intent.getExtras().get(TagSyncService.EXTRA_CURRENT_TASK);
 			String action = intent.getAction();
@@ -91,6 +111,7 @@ ActionBar.OnNavigationListener {
 				break;
 			case SYNC:
 				setProgressBarIndeterminateVisibility(false); 
+				setProgressBarVisibility(false);
 				if (action.equalsIgnoreCase(TagSyncService.ACTION_FAILED)) 
 					toastText  = "Sync with Evernote failed";
 				break;
@@ -98,6 +119,18 @@ ActionBar.OnNavigationListener {
 				toastText  = (action.equalsIgnoreCase(TagSyncService.ACTION_COMPLETED)) ? 
 						"Tag updated successfully" : "Tag update failed";
 				break;
+			case DELETE_SUBTREE:
+				toastText  = (action.equalsIgnoreCase(TagSyncService.ACTION_COMPLETED)) ? 
+						"Tag and children deleted successfully" : "Some tags couldn't be deleted";
+				break;
+			case BULK_DELETE:
+				toastText  = (action.equalsIgnoreCase(TagSyncService.ACTION_COMPLETED)) ? 
+						"Tags deleted successfully" : "Some tags couldn't be deleted";
+				break;
+			case BULK_MOVE:
+				toastText  = (action.equalsIgnoreCase(TagSyncService.ACTION_COMPLETED)) ? 
+						"Tags moved successfully" : "Some tags couldn't be moved";
+				break;
 			default:
 				break;
 
@@ -117,6 +150,8 @@ ActionBar.OnNavigationListener {
 		// This will request the indeterminate progress indicator in the action bar
 		// it need to be call before setContent
 		requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
+		// and this one the progress bar we use to show how far along a sync is
+		requestWindowFeature(Window.FEATURE_PROGRESS);
 		setContentView(R.layout.activity_tag_editor);
 		setProgressBarIndeterminateVisibility(false); 
 		// Set-up Evernote session
@@ -134,8 +169,8 @@ ActionBar.OnNavigationListener {
     @Override
     public void onResume() {
         super.onResume();
-        // Open a DB connetion
-        TagsDb.INSTANCE.open(getApplicationContext());
+        // Acquire a DB connetion
+        TagsDb.INSTANCE.acquire(getApplicationContext());
         // register broad cast receiver
         registerReceivers();
 
@@ -146,25 +181,32 @@ ActionBar.OnNavigationListener {
             if (!mEvernoteSession.isLoggedIn()) {
                 startAuth();
             } else {
-                startListFragment();
+                // after a configuration change the fragment (and its loader) is still there
+                if (getSupportFragmentManager().findFragmentByTag(LIST_FRAGMENT_TAG) == null)
+                    startListFragment();
                 updateUi();
             }
         }
     }
 
-	/** Register intent filters to listen for responses from the sync service */
+	/** Register intent filters to listen for responses from the sync service, which only broadcasts within our process */
 	private void registerReceivers() {
+		LocalBroadcastManager broadcastManager = LocalBroadcastManager.getInstance(this);
 		IntentFilter if_completed = new IntentFilter(TagSyncService.ACTION_COMPLETED);
 		IntentFilter if_failed = new IntentFilter(TagSyncService.ACTION_FAILED);
-		registerReceiver(actionReceiver, if_completed);
-		registerReceiver(actionReceiver, if_failed);
+		IntentFilter if_progress = new IntentFilter(TagSyncService.ACTION_PROGRESS);
+		IntentFilter if_local_change = new IntentFilter(TagSyncService.ACTION_LOCAL_CHANGE);
+		broadcastManager.registerReceiver(actionReceiver, if_completed);
+		broadcastManager.registerReceiver(actionReceiver, if_failed);
+		broadcastManager.registerReceiver(actionReceiver, if_progress);
+		broadcastManager.registerReceiver(actionReceiver, if_local_change);
 	}
 
 	/** Called when the activity is sent to the background. */
 	@Override
 	protected void onPause() {
-		TagsDb.INSTANCE.close();
-		unregisterReceiver(actionReceiver);
+		TagsDb.INSTANCE.release();
+		LocalBroadcastManager.getInstance(this).unregisterReceiver(actionReceiver);
 		super.onPause();
 	}
 
@@ -234,9 +276,24 @@ ActionBar.OnNavigationListener {
 	 */
 	public void logOut() {
 		mEvernoteSession.logOut(getApplicationContext());
+		TagSyncService.resetNoteStoreClients();
 		Editor edit = PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).edit();
 		edit.putString("username", "");
+		// forget the sync state of the previous user
+		edit.remove(TagSyncService.PREF_LAST_UPDATE_COUNT);
+		edit.remove(TagSyncService.PREF_LAST_SYNC_TIME);
 		edit.apply();	
+		resetLocalTags();
+	}
+
+	/**
+	 * Asks the sync service to drop the local tags and its pending work, which belong 
+	 * to the user that is gone.
+	 */
+	private void resetLocalTags() {
+		Intent i = new Intent(TagEditorActivity.this, TagSyncService.class);
+		i.putExtra(TagSyncService.EXTRA_CURRENT_TASK, TagSyncService.Task.RESET);
+		startService(i);
 	}
 
 	/**
@@ -250,6 +307,8 @@ ActionBar.OnNavigationListener {
 		//Update UI when oauth activity returns result
 		case EvernoteSession.REQUEST_CODE_OAUTH:
 			if(resultCode == Activity.RESULT_OK) {
+				// a new token, the clients of the previous one can't be reused
+				TagSyncService.resetNoteStoreClients();
 				updateUi();
 			} else OAuthFailed = true;
 			break;
@@ -278,15 +337,68 @@ ActionBar.OnNavigationListener {
     }
 
 	/**
-	 * Creates the two action bar buttons
+	 * Creates the action bar buttons, and the search box
 	 */
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		// Inflate the menu; this adds items to the action bar if it is present.
 		getSupportMenuInflater().inflate(R.menu.activity_tag_editor, menu);
+		searchItem = menu.findItem(R.id.search);
+		final SearchView searchView = (SearchView) searchItem.getActionView();
+		searchView.setQueryHint(getResources().getString(R.string.search_hint));
+		// if the list was searching before a configuration change, we show the search again
+		// (before setting the listeners, so the list keeps its query)
+		TagListFragment listFragment = getListFragment();
+		if (listFragment != null && listFragment.isSearching()) {
+			String query = listFragment.getSearchQuery();
+			searchItem.expandActionView();
+			searchView.setQuery(query, false);
+		}
+		// the list is searched as the user types
+		searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+			@Override
+			public boolean onQueryTextSubmit(String query) {
+				// the results are already there, we only hide the keyboard
+				searchView.clearFocus();
+				return true;
+			}
+
+			@Override
+			public boolean onQueryTextChange(String newText) {
+				getListFragment().setSearchQuery(newText);
+				return true;
+			}
+		});
+		// opening the search box starts the search mode of the list, and closing it ends it
+		searchItem.setOnActionExpandListener(new MenuItem.OnActionExpandListener() {
+			@Override
+			public boolean onMenuItemActionExpand(MenuItem item) {
+				getListFragment().setSearchQuery("");
+				return true;
+			}
+
+			@Override
+			public boolean onMenuItemActionCollapse(MenuItem item) {
+				getListFragment().setSearchQuery(null);
+				return true;
+			}
+		});
 		return true;
 	}
 
+	/**
+	 * Close the search box, which takes the list back to the level it was showing.
+	 * 
+	 */
+	public void collapseSearch() {
+		if (searchItem != null)
+			searchItem.collapseActionView();
+	}
+
+	private TagListFragment getListFragment() {
+		return (TagListFragment) getSupportFragmentManager().findFragmentByTag(LIST_FRAGMENT_TAG);
+	}
+
 	/**
 	 * Detects if the user presses the "Back" button on the device and
 	 * simulates a click on the header of the fragment, to go back to 
@@ -297,6 +409,11 @@ ActionBar.OnNavigationListener {
 	public boolean onKeyDown(int keyCode, KeyEvent event) {
 		if (keyCode == KeyEvent.KEYCODE_BACK) {
 			TagListFragment listFragment = (TagListFragment) getSupportFragmentManager().findFragmentByTag(TagEditorActivity.LIST_FRAGMENT_TAG);
+			// while searching, back closes the search box
+			if(listFragment.isSearching()) {
+				collapseSearch();
+				return true;
+			}
 			if(!listFragment.isTopLevelList()) {
 				listFragment.onHeaderClick();
 				return true;
@@ -376,8 +493,13 @@ ActionBar.OnNavigationListener {
 				edit.putString("username", username);
 				edit.apply();	
 
+				// the tags and the outbox of the previous user go first, the service 
+				// handles the reset before the sync
+				resetLocalTags();
 				Intent i = new Intent(TagEditorActivity.this, TagSyncService.class);
 				i.putExtra(TagSyncService.EXTRA_CURRENT_TASK, TagSyncService.Task.SYNC);
+				// a new user means our local tags are useless, so we ask for a full sync
+				i.putExtra(TagSyncService.EXTRA_FULL_SYNC, true);
 				startService(i);
 
 			} catch(Exception e) {
@@ -1,25 +1,44 @@
 package com.evernote.android.sample.tageditor.ui;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
 import android.app.AlertDialog;
 import android.app.Dialog;
 
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
-import android.os.AsyncTask;
+import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.DialogFragment;
 import android.support.v4.app.ListFragment;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.CursorLoader;
+import android.support.v4.content.Loader;
+import android.support.v4.widget.SimpleCursorAdapter;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemLongClickListener;
 import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.TextView;
 
+import com.actionbarsherlock.app.SherlockFragmentActivity;
+import com.actionbarsherlock.view.ActionMode;
+import com.actionbarsherlock.view.Menu;
+import com.actionbarsherlock.view.MenuItem;
 import com.evernote.android.sample.tageditor.R;
 import com.evernote.android.sample.tageditor.data.DatabaseHelper;
+import com.evernote.android.sample.tageditor.data.TagChangeSet;
 import com.evernote.android.sample.tageditor.data.TagListAdapter;
+import com.evernote.android.sample.tageditor.data.TagSpinnerAdapter;
 import com.evernote.android.sample.tageditor.data.TagsDb;
+import com.evernote.android.sample.tageditor.data.TagsProvider;
 import com.evernote.android.sample.tageditor.service.TagSyncService;
 import com.evernote.edam.type.Tag;
 
@@ -28,18 +47,40 @@ import com.evernote.edam.type.Tag;
  * 
  * <p>We extend a ListFragment which gives us all the functionality we need 
  * to present a list of items through a listview and its corresponding adapter.</p>
+ * <p>A long press on a tag starts the selection mode, where tapping tags selects them
+ * and the action bar offers to delete or move all the selected tags at once.</p>
+ * <p>While searching, the list shows the tags matching the search from every level 
+ * instead of the current level, which is shown again once the search ends.</p>
+ * <p>The list is loaded from {@link TagsProvider} with a loader, which keeps the loaded
+ * cursor across configuration changes and queries again only when the level (or search)
+ * being shown changes. The level being shown is kept on the saved state.</p>
  * 
  * @author Juan Gomez
  * @version 1.0.0
  * @since December 3, 2012
  * 
  */
-public class TagListFragment extends ListFragment {
+public class TagListFragment extends ListFragment implements LoaderManager.LoaderCallbacks<Cursor> {
+
+	// Saved state keys
+	private static final String STATE_CURRENT_TAG_GUID = "currentTagGuid";
+	private static final String STATE_TOP_LEVEL = "isTopLevel";
+	private static final String STATE_SEARCH_QUERY = "searchQuery";
+	private static final String STATE_SELECTED_GUIDS = "selectedGuids";
 
-	private Cursor cursor;
+	private static final int LIST_LOADER = 0;
+
+	private TagListAdapter adapter;
 	private String currentTagGuid;
 	private boolean isTopLevel;
 	private LinearLayout header;
+	// Guids of the selected tags, and the action mode shown while there's a selection
+	private final Set<String> selectedGuids = new HashSet<String>();
+	private ActionMode actionMode;
+	// Set while the state is saved, until we're resumed
+	private boolean stateSaved;
+	// Text being searched, or null when we're not searching
+	private String searchQuery;
 
 	@Override
 	public View onCreateView(android.view.LayoutInflater inflater, android.view.ViewGroup container, Bundle savedInstanceState) {
@@ -50,21 +91,72 @@ public class TagListFragment extends ListFragment {
 		return view;
 	}
 
+	@Override
+	public void onActivityCreated(Bundle savedInstanceState) {
+		super.onActivityCreated(savedInstanceState);
+		// the adapter lives as long as the fragment, the loader swaps its cursor
+		adapter = new TagListAdapter(getActivity(), null);
+		adapter.setSelectedGuids(selectedGuids);
+		setListAdapter(adapter);
+		updateHeader();
+		// a selection made before a configuration change is shown again
+		if (!selectedGuids.isEmpty() && actionMode == null) {
+			actionMode = ((SherlockFragmentActivity) getActivity()).startActionMode(new SelectionCallback());
+			actionMode.setTitle(getResources().getString(R.string.selected_count, selectedGuids.size()));
+		}
+		// this reconnects to the loader of the previous instance, if there was one
+		getLoaderManager().initLoader(LIST_LOADER, null, this);
+		// a long press starts the selection mode
+		getListView().setOnItemLongClickListener(new OnItemLongClickListener() {
+			@Override
+			public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+				if (actionMode == null)
+					actionMode = ((SherlockFragmentActivity) getActivity()).startActionMode(new SelectionCallback());
+				toggleSelection(position);
+				return true;
+			}
+		});
+	}
+
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
-		// When the fragment gets created we're loading the list of top lever tags.
-		// so we set isTopLevel to true and execute the loader task.
+		// When the fragment gets created we're loading the list of top lever tags,
+		// unless we're coming back from a configuration change
 		isTopLevel = true;
-		new TagLoaderTask().execute();
+		currentTagGuid = "";
+		if (savedInstanceState != null) {
+			isTopLevel = savedInstanceState.getBoolean(STATE_TOP_LEVEL, true);
+			currentTagGuid = savedInstanceState.getString(STATE_CURRENT_TAG_GUID);
+			searchQuery = savedInstanceState.getString(STATE_SEARCH_QUERY);
+			ArrayList<String> selected = savedInstanceState.getStringArrayList(STATE_SELECTED_GUIDS);
+			if (selected != null)
+				selectedGuids.addAll(selected);
+		}
+		// we hold the database for as long as this fragment exists
+		TagsDb.INSTANCE.acquire(getActivity().getApplicationContext());
+	}
+
+	@Override
+	public void onSaveInstanceState(Bundle outState) {
+		super.onSaveInstanceState(outState);
+		outState.putBoolean(STATE_TOP_LEVEL, isTopLevel);
+		outState.putString(STATE_CURRENT_TAG_GUID, currentTagGuid);
+		outState.putString(STATE_SEARCH_QUERY, searchQuery);
+		outState.putStringArrayList(STATE_SELECTED_GUIDS, new ArrayList<String>(selectedGuids));
+		stateSaved = true;
 	}
 
 	@Override
-	public void onPause() {
-		// close a cursor if it's still open
-		if(cursor != null && !cursor.isClosed())
-			cursor.close();
-		super.onPause();
+	public void onResume() {
+		super.onResume();
+		stateSaved = false;
+	}
+
+	@Override
+	public void onDestroy() {
+		TagsDb.INSTANCE.release();
+		super.onDestroy();
 	}
 
 	/**
@@ -84,20 +176,159 @@ public class TagListFragment extends ListFragment {
 		return isTopLevel;
 	}
 
+	/**
+	 * Is the fragment showing search results
+	 * 
+	 */
+	public boolean isSearching() {
+		return searchQuery != null;
+	}
+
+	/**
+	 * Show the tags matching a search, or go back to the current level.
+	 * @param	query	The text being searched, or null to stop searching.
+	 * 
+	 */
+	public void setSearchQuery(String query) {
+		searchQuery = query;
+		updateHeader();
+		getLoaderManager().restartLoader(LIST_LOADER, null, this);
+	}
+
+	/**
+	 * Get the text being searched, or null if we're not searching
+	 * 
+	 */
+	public String getSearchQuery() {
+		return searchQuery;
+	}
+
+	/**
+	 * Show the children of a tag.
+	 * @param	guid	A string representing the Guid of the Parent Tag.
+	 * 
+	 */
+	public void showChildren(String guid) {
+		isTopLevel = false;
+		currentTagGuid = guid;
+		updateHeader();
+		getLoaderManager().restartLoader(LIST_LOADER, null, this);
+	}
+
+	/**
+	 * Catch up with the tags changed by the sync service.
+	 * <p>The rows of the level being shown come from the content provider, which only
+	 * queries again when that level changed. Here we take care of what the rows don't 
+	 * show: the selection, the tag whose children we're showing and the breadcrumb.</p>
+	 * @param	changes	the {@link TagChangeSet} sent with the broadcast.
+	 * 
+	 */
+	public void onTagsChanged(TagChangeSet changes) {
+		// tags created locally get the Guid from the Evernote service
+		List<String> replaced = changes.getReplaced();
+		for (int i = 0; i < replaced.size(); i++) {
+			String newGuid = changes.getReplacements().get(i);
+			if (selectedGuids.remove(replaced.get(i)))
+				selectedGuids.add(newGuid);
+			if (!isTopLevel && replaced.get(i).equals(currentTagGuid)) {
+				currentTagGuid = newGuid;
+				getLoaderManager().restartLoader(LIST_LOADER, null, this);
+			}
+		}
+		// deleted tags can't stay selected. When we don't know which tags changed,
+		// we keep the ones that are still there
+		boolean selectionChanged = selectedGuids.removeAll(changes.getDeleted());
+		if (!changes.isComplete()) {
+			for (Iterator<String> it = selectedGuids.iterator(); it.hasNext();) {
+				if (TagsDb.INSTANCE.getTagByGuid(it.next()) == null) {
+					it.remove();
+					selectionChanged = true;
+				}
+			}
+		}
+		if (selectionChanged && actionMode != null) {
+			if (selectedGuids.isEmpty())
+				actionMode.finish();
+			else
+				actionMode.setTitle(getResources().getString(R.string.selected_count, selectedGuids.size()));
+			adapter.notifyDataSetChanged();
+		}
+		if (isTopLevel)
+			return;
+		// if the tag we're showing is gone, we go back to the top level
+		if (TagsDb.INSTANCE.getTagByGuid(currentTagGuid) == null) {
+			isTopLevel = true;
+			currentTagGuid = "";
+			getLoaderManager().restartLoader(LIST_LOADER, null, this);
+		}
+		// the tag or one of its ancestors may have been renamed or moved
+		updateHeader();
+	}
+
+	/**
+	 * Show the header (and its breadcrumb) when we're showing the children of a tag.
+	 * The header belongs to the level, search results come from all over the hierarchy.
+	 * 
+	 */
+	private void updateHeader() {
+		TextView title = (TextView) header.findViewById(R.id.name_title);
+		if (searchQuery != null || isTopLevel) {
+			header.setVisibility(View.GONE);
+			header.setOnClickListener(null);
+			if (isTopLevel)
+				title.setText("");
+			return;
+		}
+		// we activate the header view, so that the user can get back to the previous screen
+		header.setVisibility(View.VISIBLE);
+		header.setOnClickListener(new OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				onHeaderClick();
+			}
+		});
+		List<Tag> breadcrumb = TagsDb.INSTANCE.getAncestors(currentTagGuid);
+		breadcrumb.add(TagsDb.INSTANCE.getTagByGuid(currentTagGuid));
+		title.setText(getBreadcrumb(breadcrumb));
+	}
+
+	@Override
+	public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+		// the URI of what we're showing, the provider notifies it when it changes
+		Uri uri;
+		if (searchQuery != null)
+			uri = TagsProvider.getSearchUri(searchQuery);
+		else if (isTopLevel)
+			uri = TagsProvider.TOP_LEVEL_URI;
+		else
+			uri = TagsProvider.getChildrenUri(currentTagGuid);
+		return new CursorLoader(getActivity(), uri, null, null, null, null);
+	}
+
+	@Override
+	public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+		// the loader owns the cursor, so we swap it instead of changing it (which would close it)
+		adapter.swapCursor(data);
+	}
+
+	@Override
+	public void onLoaderReset(Loader<Cursor> loader) {
+		adapter.swapCursor(null);
+	}
+
 	@Override
 	public void onListItemClick(ListView l, View v, int position, long id) {
 		super.onListItemClick(l, v, position, id);
+		// while selecting, a tap adds or removes the tag from the selection
+		if (actionMode != null) {
+			toggleSelection(position);
+			return;
+		}
+		Cursor cursor = adapter.getCursor();
 		cursor.moveToPosition(position);
 		// if an item is cisked we determine if it has any children
 		final String selectedTagGuid = cursor.getString(cursor.getColumnIndex(DatabaseHelper.COLUMN_GUID));
-		final Cursor childCursor = TagsDb.INSTANCE.getChildTags(selectedTagGuid);
-		boolean hasChildren = false;
-		if(childCursor != null) {
-			// if it does, we set hasChildren to true
-			if(childCursor.getCount() > 0) {
-				hasChildren = true;
-			}
-		}
+		boolean hasChildren = cursor.getInt(cursor.getColumnIndex(TagsDb.COLUMN_CHILD_COUNT)) > 0;
 		// we create a Dialog Fragment to display the possible actions on the selected tag
 		// and send information about the tag and the state of the list fragment using
 		// and arguments bundle.
@@ -113,69 +344,182 @@ public class TagListFragment extends ListFragment {
 		newFragment.show(getFragmentManager(), "TagAction");
 	}
 
-	public void notifyDataSetChanged() {
-		new TagLoaderTask().execute();
+	/**
+	 * Add the tag at a position of the list to the selection, or remove it if it was selected.
+	 * The selection mode ends when the last tag is removed.
+	 * 
+	 */
+	private void toggleSelection(int position) {
+		Cursor cursor = adapter.getCursor();
+		cursor.moveToPosition(position);
+		String guid = cursor.getString(cursor.getColumnIndex(DatabaseHelper.COLUMN_GUID));
+		if (!selectedGuids.remove(guid))
+			selectedGuids.add(guid);
+		if (selectedGuids.isEmpty()) {
+			actionMode.finish();
+			return;
+		}
+		actionMode.setTitle(getResources().getString(R.string.selected_count, selectedGuids.size()));
+		adapter.notifyDataSetChanged();
+	}
+
+	/**
+	 * Action mode shown while there are selected tags, with the bulk operations.
+	 * 
+	 */
+	private class SelectionCallback implements ActionMode.Callback {
+
+		@Override
+		public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+			mode.getMenuInflater().inflate(R.menu.tag_selection, menu);
+			return true;
+		}
+
+		@Override
+		public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+			return false;
+		}
+
+		@Override
+		public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+			ArrayList<String> guids = new ArrayList<String>(selectedGuids);
+			switch (item.getItemId()) {
+			case R.id.deleteTags:
+				// every selected tag is deleted with a single request to the sync service
+				Intent i = new Intent(getActivity().getApplicationContext(), TagSyncService.class);
+				i.putExtra(TagSyncService.EXTRA_CURRENT_TASK, TagSyncService.Task.BULK_DELETE);
+				i.putStringArrayListExtra(TagSyncService.EXTRA_TAG_GUIDS, guids);
+				getActivity().startService(i);
+				mode.finish();
+				return true;
+			case R.id.moveTags:
+				// we ask for the new parent, the dialog sends the request to the sync service
+				DialogFragment newFragment = new MoveTagsDialogFragment();
+				Bundle argBundle = new Bundle();
+				argBundle.putStringArrayList(MoveTagsDialogFragment.GUIDS_BUNDLE_KEY, guids);
+				newFragment.setArguments(argBundle);
+				newFragment.show(getFragmentManager(), "MoveTags");
+				mode.finish();
+				return true;
+			default:
+				return false;
+			}
+		}
+
+		@Override
+		public void onDestroyActionMode(ActionMode mode) {
+			actionMode = null;
+			// the action mode also ends when the activity goes away after saving its state, 
+			// the selection is kept then to be restored with it
+			if (!stateSaved) {
+				selectedGuids.clear();
+				adapter.notifyDataSetChanged();
+			}
+		}
 	}
 
 	public void onHeaderClick() {
+		// the selection belongs to the level we're leaving
+		if (actionMode != null)
+			actionMode.finish();
 		// if the header is clicked (or the back button pressed) we retrieve the parent
 		// tag of the current tag and then reset the lst fragment to display a list
-		// of its children
-		Tag currentTag = TagsDb.INSTANCE.getTagByGuid(currentTagGuid);
-		TextView title = (TextView) header.findViewById(R.id.name_title);
-		if(currentTag.getParentGuid() != null) {
-			currentTagGuid = currentTag.getParentGuid();
-			Tag parentTag = TagsDb.INSTANCE.getTagByGuid(currentTagGuid);
-			title.setText("Tags under " + parentTag.getName());
+		// of its children. The ancestors come from the stored path of the tag, 
+		// so we don't need to walk up the hierarchy
+		List<Tag> ancestors = TagsDb.INSTANCE.getAncestors(currentTagGuid);
+		if(!ancestors.isEmpty()) {
+			currentTagGuid = ancestors.get(ancestors.size() - 1).getGuid();
 		} else {
 			// if the parent Tag is blank, we simply reconfoigure the list view for the
 			// list of top level tags.
 			isTopLevel = true;
 			currentTagGuid =  "";
-			header.setVisibility(View.GONE);
-			header.setOnClickListener(null);
-			title.setText("");
 		}
-		new TagLoaderTask().execute();
+		updateHeader();
+		getLoaderManager().restartLoader(LIST_LOADER, null, this);
 	}
 
 	/**
-	 * This a loader task that performs the query to the database on an AsyncTask to 
-	 * avoid locking the UI thread 
+	 * Build the text of the header, with the names of the tags from the top level down
+	 * to the one being shown.
+	 * @param	tags	A {@link List} of {@link Tag} objects, starting with the top level one.
 	 * 
 	 */
-	private class TagLoaderTask extends AsyncTask<Void, Void, Void> {
+	static String getBreadcrumb(List<Tag> tags) {
+		StringBuilder sb = new StringBuilder();
+		for (Tag tag : tags) {
+			if (tag == null)
+				continue;
+			if (sb.length() > 0)
+				sb.append(" / ");
+			sb.append(tag.getName());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Dialog Fragment used to pick the new parent of the selected tags
+	 * 
+	 */
+	public static class MoveTagsDialogFragment extends DialogFragment 
+			implements LoaderManager.LoaderCallbacks<Cursor> {
+
+		public static final String GUIDS_BUNDLE_KEY = "guids";
+
+		private static final int PARENTS_LOADER = 0;
+
+		private SimpleCursorAdapter adapter;
 
 		@Override
-		protected void onPreExecute() {
-			// detach the lsit adapter from the cursor we're about to re-create
-			setListAdapter(null);
+		public Dialog onCreateDialog(Bundle savedInstanceState) {
+			AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+			final ArrayList<String> guids = getArguments().getStringArrayList(GUIDS_BUNDLE_KEY);
+			// the list fills in once the loader has the possible parents
+			adapter = new SimpleCursorAdapter(getActivity(), android.R.layout.select_dialog_item, null, 
+					new String[] { DatabaseHelper.COLUMN_NAME }, new int[] { android.R.id.text1 }, 0);
+			builder.setTitle(getResources().getString(R.string.move_prompt))
+			.setAdapter(adapter, new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int which) {
+					Cursor parents = adapter.getCursor();
+					if (parents == null || !parents.moveToPosition(which))
+						return;
+					// the empty tag has no Guid, which the service takes as a top level tag
+					String parentGuid = TagSpinnerAdapter.getGuid(parents);
+					dismiss();
+					Intent i = new Intent(getActivity().getApplicationContext(), TagSyncService.class);
+					i.putExtra(TagSyncService.EXTRA_CURRENT_TASK, TagSyncService.Task.BULK_MOVE);
+					i.putStringArrayListExtra(TagSyncService.EXTRA_TAG_GUIDS, guids);
+					i.putExtra(TagSyncService.EXTRA_TAG_PARENT, parentGuid);
+					getActivity().startService(i);
+				}
+			});
+			return builder.create();
 		}
 
 		@Override
-		protected Void doInBackground(Void... v) {
-			// close any open cursors
-			if(cursor != null) {
-				cursor.close();
-				cursor = null;
-			}
-			TagsDb.INSTANCE.open(getActivity());
+		public void onActivityCreated(Bundle savedInstanceState) {
+			super.onActivityCreated(savedInstanceState);
+			getLoaderManager().initLoader(PARENTS_LOADER, null, this);
+		}
 
-			// if isTopLevel equals false we send the Guid of the current task to get its children
-			if(isTopLevel) {
-				cursor = TagsDb.INSTANCE.getTopLevelTags();
-			} else {
-				cursor = TagsDb.INSTANCE.getChildTags(TagListFragment.this.currentTagGuid);
-			}
+		@Override
+		public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+			// the possible parents are all the tags, minus the selected ones and their 
+			// subtrees, to avoid a circular reference. Finding the subtrees can load the 
+			// whole index, so it doesn't happen on the main thread
+			ArrayList<String> guids = getArguments().getStringArrayList(GUIDS_BUNDLE_KEY);
+			return new CursorLoader(getActivity(), TagsProvider.getParentCandidatesUri(guids), 
+					null, null, null, null);
+		}
 
-			return null;
+		@Override
+		public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+			adapter.swapCursor(data);
 		}
 
 		@Override
-		protected void onPostExecute(Void v) {
-			if(cursor != null && !cursor.isClosed() && cursor.getCount() > 0) {
-				setListAdapter(new TagListAdapter(TagListFragment.this.getActivity(), cursor));
-			}
+		public void onLoaderReset(Loader<Cursor> loader) {
+			adapter.swapCursor(null);
 		}
 	}
 
@@ -186,6 +530,7 @@ public class TagListFragment extends ListFragment {
 	public static class ModifyTagDialogFragment extends DialogFragment {
 
 		
+		private static final int ACTION_DELETE_SUBTREE = 3;
 		private static final int ACTION_VIEW = 2;
 		private static final int ACTION_DELETE = 1;
 		private static final int ACTION_EDIT = 0;
@@ -205,6 +550,8 @@ public class TagListFragment extends ListFragment {
 			if(argBundle.getBoolean(HAS_CHILDREN_BUNDLE_KEY)) {
 				options.append(",");
 				options.append(getResources().getString(R.string.action_view));
+				options.append(",");
+				options.append(getResources().getString(R.string.action_delete_subtree));
 			}
 			// and set the main attributes of the dialog
 			builder.setTitle(getResources().getString(R.string.action_prompt))
@@ -230,23 +577,22 @@ public class TagListFragment extends ListFragment {
 						i.putExtra(TagSyncService.EXTRA_TAG_GUID, argBundle.getString(AddEditTagDialogFragment.GUID_BUNDLE_KEY));
 						getActivity().startService(i);
 						break;
+					case ACTION_DELETE_SUBTREE:
+						// the service deletes the tag and every tag under it
+						dismiss();
+						Intent subtree = new Intent(getActivity().getApplicationContext(), TagSyncService.class);
+						subtree.putExtra(TagSyncService.EXTRA_CURRENT_TASK, TagSyncService.Task.DELETE_SUBTREE);
+						subtree.putExtra(TagSyncService.EXTRA_TAG_GUID, argBundle.getString(AddEditTagDialogFragment.GUID_BUNDLE_KEY));
+						getActivity().startService(subtree);
+						break;
 					case ACTION_VIEW:
 						// If we're viewing the embedded tasks, we re-set the parameters of the 
 						// list dialog and triger a re-query
-						final TagListFragment listFragment = (TagListFragment) getFragmentManager().findFragmentByTag(TagEditorActivity.LIST_FRAGMENT_TAG);
-						listFragment.isTopLevel = false;
-						listFragment.currentTagGuid = argBundle.getString(AddEditTagDialogFragment.GUID_BUNDLE_KEY);
-						// we also activate the header view, so that the user can get back to the previous screen
-						listFragment.header.setVisibility(View.VISIBLE);
-						listFragment.header.setOnClickListener(new OnClickListener() {
-							@Override
-							public void onClick(View v) {
-								listFragment.onHeaderClick();
-							}
-						});
-						TextView title = (TextView) listFragment.header.findViewById(R.id.name_title);
-						title.setText(argBundle.getString(AddEditTagDialogFragment.NAME_BUNDLE_KEY));
-						listFragment.notifyDataSetChanged();
+						TagListFragment listFragment = (TagListFragment) getFragmentManager().findFragmentByTag(TagEditorActivity.LIST_FRAGMENT_TAG);
+						// a search result can be viewed as well, which ends the search
+						if (listFragment.isSearching())
+							((TagEditorActivity) getActivity()).collapseSearch();
+						listFragment.showChildren(argBundle.getString(AddEditTagDialogFragment.GUID_BUNDLE_KEY));
 					}
 				}
 			});
@@ -0,0 +1,212 @@
+package com.evernote.android.sample.tageditor.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.evernote.android.sample.tageditor.service.TagSyncService.Task;
+
+/**
+ * Coalescing rules of the {@link TagOperationQueue}
+ *
+ */
+public class TagOperationQueueTest {
+
+	private final TagOperationQueue queue = new TagOperationQueue();
+	private final List<TagOperation> dropped = new ArrayList<TagOperation>();
+
+	@Test
+	public void createFollowedByDeleteSendsNothing() {
+		TagOperation create = newCreate("new tag");
+		assertTrue(queue.offer(create, dropped));
+
+		assertFalse(queue.offer(newOperation(Task.DELETE, create.guid), dropped));
+
+		// both are gone before a worker could pick them up
+		assertEquals(2, dropped.size());
+		assertSame(create, dropped.get(0));
+		assertNull(queue.pollRunnable(System.currentTimeMillis()));
+		assertTrue(queue.isIdle());
+	}
+
+	@Test
+	public void createGetsItsOwnGuid() {
+		TagOperation first = newCreate("same name");
+		TagOperation second = newCreate("same name");
+
+		assertTrue(first.guid.startsWith(TagSyncService.LOCAL_GUID_PREFIX));
+		assertFalse(first.guid.equals(second.guid));
+	}
+
+	@Test
+	public void deleteOfAnotherTagKeepsTheCreate() {
+		TagOperation create = newCreate("new tag");
+		queue.offer(create, dropped);
+
+		assertTrue(queue.offer(newOperation(Task.DELETE, "some-other-guid"), dropped));
+
+		assertTrue(dropped.isEmpty());
+		assertSame(create, queue.pollRunnable(System.currentTimeMillis()));
+	}
+
+	@Test
+	public void deleteDropsPendingUpdates() {
+		TagOperation update = newOperation(Task.UPDATE, "guid");
+		update.name = "renamed";
+		queue.offer(update, dropped);
+		TagOperation delete = newOperation(Task.DELETE, "guid");
+
+		assertTrue(queue.offer(delete, dropped));
+
+		assertEquals(1, dropped.size());
+		assertSame(update, dropped.get(0));
+		assertSame(delete, queue.pollRunnable(System.currentTimeMillis()));
+	}
+
+	@Test
+	public void deletesOfASubtreeRunTogether() {
+		TagOperationBatch batch = new TagOperationBatch(Task.DELETE_SUBTREE);
+		TagOperation child = batch.add(Task.DELETE, "child");
+		child.currentParentGuid = "root";
+		TagOperation root = batch.add(Task.DELETE, "root");
+		queue.offer(child, dropped);
+		queue.offer(root, dropped);
+
+		long now = System.currentTimeMillis();
+		assertSame(child, queue.pollRunnable(now));
+		assertSame(root, queue.pollRunnable(now));
+	}
+
+	@Test
+	public void deletesOfASubtreeWaitForOtherOperations() {
+		TagOperation rename = newOperation(Task.UPDATE, "child");
+		rename.name = "renamed";
+		queue.offer(rename, dropped);
+		TagOperationBatch batch = new TagOperationBatch(Task.DELETE_SUBTREE);
+		TagOperation root = batch.add(Task.DELETE, "root");
+		queue.offer(root, dropped);
+		TagOperation child = newOperation(Task.UPDATE, "grandchild");
+		child.hasParent = true;
+		child.parentGuid = "root";
+		queue.offer(child, dropped);
+
+		long now = System.currentTimeMillis();
+		assertSame(rename, queue.pollRunnable(now));
+		assertSame(root, queue.pollRunnable(now));
+		// a move under the deleted root has to wait for it
+		assertNull(queue.pollRunnable(now));
+	}
+
+	@Test
+	public void mergedUpdateKeepsThePlaceOfTheEarlierOne() {
+		TagOperation first = newOperation(Task.UPDATE, "guid");
+		first.name = "first";
+		queue.offer(first, dropped);
+		TagOperation other = newOperation(Task.UPDATE, "other-guid");
+		other.name = "other";
+		queue.offer(other, dropped);
+		TagOperation second = newOperation(Task.UPDATE, "guid");
+		second.hasParent = true;
+		second.parentGuid = "parent";
+
+		assertTrue(queue.offer(second, dropped));
+
+		assertEquals(1, dropped.size());
+		assertSame(first, dropped.get(0));
+		long now = System.currentTimeMillis();
+		assertSame(second, queue.pollRunnable(now));
+		assertEquals("first", second.name);
+		assertEquals("parent", second.parentGuid);
+		assertSame(other, queue.pollRunnable(now));
+	}
+
+	@Test
+	public void updateIsntMergedAcrossAConflictingOperation() {
+		TagOperation move = newOperation(Task.UPDATE, "guid");
+		move.hasParent = true;
+		move.parentGuid = "parent";
+		queue.offer(move, dropped);
+		TagOperation delete = newOperation(Task.DELETE, "parent");
+		queue.offer(delete, dropped);
+		TagOperation rename = newOperation(Task.UPDATE, "guid");
+		rename.name = "renamed";
+		rename.currentParentGuid = "parent";
+
+		assertTrue(queue.offer(rename, dropped));
+
+		// the move still runs before the delete of its new parent
+		assertTrue(dropped.isEmpty());
+		assertNull(move.name);
+		assertSame(move, queue.pollRunnable(System.currentTimeMillis()));
+	}
+
+	@Test
+	public void interleavedOperationsRunInTheOrderTheyWereQueued() {
+		TagOperation move = newOperation(Task.UPDATE, "guid");
+		move.hasParent = true;
+		move.parentGuid = "parent";
+		queue.offer(move, dropped);
+		TagOperation delete = newOperation(Task.DELETE, "parent");
+		queue.offer(delete, dropped);
+		TagOperation rename = newOperation(Task.UPDATE, "guid");
+		rename.name = "renamed";
+		rename.currentParentGuid = "parent";
+		queue.offer(rename, dropped);
+		TagOperation unrelated = newOperation(Task.UPDATE, "other-guid");
+		unrelated.name = "other";
+		queue.offer(unrelated, dropped);
+
+		long now = System.currentTimeMillis();
+		assertSame(move, queue.pollRunnable(now));
+		// the delete waits for the move under it, the rename for both
+		assertSame(unrelated, queue.pollRunnable(now));
+		assertNull(queue.pollRunnable(now));
+		queue.complete(move);
+		assertSame(delete, queue.pollRunnable(now));
+		assertNull(queue.pollRunnable(now));
+		queue.complete(delete);
+		assertSame(rename, queue.pollRunnable(now));
+		queue.complete(rename);
+		queue.complete(unrelated);
+		assertTrue(queue.isIdle());
+	}
+
+	@Test
+	public void clearedOperationsArentRetried() {
+		TagOperation running = newOperation(Task.UPDATE, "guid");
+		running.name = "renamed";
+		queue.offer(running, dropped);
+		queue.offer(newOperation(Task.DELETE, "other-guid"), dropped);
+		assertSame(running, queue.pollRunnable(System.currentTimeMillis()));
+
+		queue.clear();
+		queue.retry(running);
+
+		assertNull(queue.pollRunnable(System.currentTimeMillis()));
+		assertTrue(queue.isIdle());
+	}
+
+	/**
+	 * Build a CREATE the way {@link TagOperation#fromIntent(android.content.Intent)} does.
+	 *
+	 */
+	private static TagOperation newCreate(String name) {
+		TagOperation op = new TagOperation(Task.CREATE);
+		op.name = name;
+		op.guid = TagOperation.newLocalGuid();
+		return op;
+	}
+
+	private static TagOperation newOperation(Task task, String guid) {
+		TagOperation op = new TagOperation(task);
+		op.guid = guid;
+		return op;
+	}
+}
@@ -0,0 +1,145 @@
+package com.evernote.android.sample.tageditor.data;
+
+import android.database.MatrixCursor;
+import android.graphics.Typeface;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.view.View;
+import android.widget.ListView;
+
+/**
+ * Allocations of {@link TagListAdapter#bindView(View, android.content.Context, android.database.Cursor)}
+ * once the list is scrolling
+ * <p> The TextViews create a few objects of their own every time their text changes, so
+ * the binds are compared with the same view calls made directly, with text that was
+ * prepared beforehand. What's left is what the adapter allocates, the numbers are on
+ * the log under the "TagListAdapterTest" tag.</p>
+ *
+ */
+public class TagListAdapterTest extends AndroidTestCase {
+
+	private static final String TAG = "TagListAdapterTest";
+	// Binds made before counting, so every buffer has grown to the size of the rows
+	private static final int WARM_UP_BINDS = 200;
+	private static final int BINDS = 1000;
+
+	// The columns of the level queries
+	private static final String[] COLUMNS = { DatabaseHelper.COLUMN_ID, DatabaseHelper.COLUMN_GUID,
+		DatabaseHelper.COLUMN_NAME, DatabaseHelper.COLUMN_PARENT_GUID, DatabaseHelper.COLUMN_UPDATE_SEQ_NUM,
+		DatabaseHelper.COLUMN_PENDING, DatabaseHelper.COLUMN_PATH, DatabaseHelper.COLUMN_DEPTH,
+		TagsDb.COLUMN_CHILD_COUNT, TagsDb.COLUMN_CHILD_NAMES };
+
+	// What the rows show, for the direct view calls
+	private static final String[] NAMES = { "Work", "Personal", "Projects" };
+	private static final String[] SUMMARIES = { "3 Tags: Meetings, Projects, Travel", "", "1 Tag:Archive" };
+	private static final boolean[] PENDING = { false, true, false };
+
+	private MatrixCursor cursor;
+	private TagListAdapter adapter;
+	// Two recycled rows, like a list scrolling through the cursor
+	private final View[] rows = new View[2];
+	private final char[][] names = new char[NAMES.length][];
+	private final char[][] summaries = new char[SUMMARIES.length][];
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		cursor = new MatrixCursor(COLUMNS);
+		cursor.addRow(new Object[] { 1, "guid-1", NAMES[0], null, 1, 0, "/guid-1/", 0, 3, "Meetings, Projects, Travel" });
+		cursor.addRow(new Object[] { 2, "guid-2", NAMES[1], null, 2, 1, "/guid-2/", 0, 0, null });
+		cursor.addRow(new Object[] { 3, "guid-3", NAMES[2], "guid-1", 3, 0, "/guid-1/guid-3/", 1, 1, "Archive" });
+		adapter = new TagListAdapter(getContext(), cursor);
+		ListView list = new ListView(getContext());
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = adapter.newView(getContext(), cursor, list);
+		}
+		for (int i = 0; i < NAMES.length; i++) {
+			names[i] = NAMES[i].toCharArray();
+			summaries[i] = SUMMARIES[i].toCharArray();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		cursor.close();
+		super.tearDown();
+	}
+
+	public void testBindsTheRow() {
+		cursor.moveToPosition(0);
+		adapter.bindView(rows[0], getContext(), cursor);
+
+		TagListAdapter.ViewHolder holder = (TagListAdapter.ViewHolder) rows[0].getTag();
+		assertEquals(NAMES[0], holder.tag_name.getText().toString());
+		assertEquals(SUMMARIES[0], holder.tag_children.getText().toString());
+		assertEquals(View.VISIBLE, holder.separator.getVisibility());
+	}
+
+	public void testSteadyStateBindsDontAllocate() {
+		bindRows(WARM_UP_BINDS);
+		setViews(WARM_UP_BINDS);
+
+		int bound = countAllocations(new Runnable() {
+			@Override
+			public void run() {
+				bindRows(BINDS);
+			}
+		});
+		int direct = countAllocations(new Runnable() {
+			@Override
+			public void run() {
+				setViews(BINDS);
+			}
+		});
+
+		Log.i(TAG, BINDS + " binds: " + bound + " objects allocated, " + direct
+				+ " by the same view calls made directly");
+		// the old binds built several Strings per row, we allow less than one object per bind
+		assertTrue("The adapter allocated " + (bound - direct) + " objects on " + BINDS + " binds",
+				bound - direct < BINDS);
+	}
+
+	/**
+	 * Bind the rows of the cursor in turn, on the recycled views.
+	 *
+	 */
+	private void bindRows(int count) {
+		for (int i = 0; i < count; i++) {
+			cursor.moveToPosition(i % NAMES.length);
+			adapter.bindView(rows[i % rows.length], getContext(), cursor);
+		}
+	}
+
+	/**
+	 * Make the view calls of {@link #bindRows(int)}, with the text ready.
+	 *
+	 */
+	private void setViews(int count) {
+		for (int i = 0; i < count; i++) {
+			int row = i % NAMES.length;
+			View view = rows[i % rows.length];
+			TagListAdapter.ViewHolder holder = (TagListAdapter.ViewHolder) view.getTag();
+			holder.separator.setVisibility((summaries[row].length > 0) ? View.VISIBLE : View.INVISIBLE);
+			holder.tag_children.setText(summaries[row], 0, summaries[row].length);
+			holder.tag_name.setText(names[row], 0, names[row].length);
+			holder.tag_name.setTypeface(null, PENDING[row] ? Typeface.ITALIC : Typeface.NORMAL);
+			view.setBackgroundResource(0);
+		}
+	}
+
+	/**
+	 * Count the objects allocated by this thread while running a task.
+	 *
+	 */
+	private static int countAllocations(Runnable task) {
+		Debug.startAllocCounting();
+		try {
+			Debug.resetThreadAllocCount();
+			task.run();
+			return Debug.getThreadAllocCount();
+		} finally {
+			Debug.stopAllocCounting();
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.evernote.android.sample.tageditor.data;
+
+import java.util.Arrays;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+import com.evernote.edam.type.Tag;
+
+/**
+ * What {@link TagsDb} stores for the changes that come from the Evernote service
+ * <p> The tests run on a database of their own, so they don't touch the tags of the app.</p>
+ *
+ */
+public class TagsDbTest extends AndroidTestCase {
+
+	private static final String PREFIX = "test.";
+
+	/**
+	 * Renames the database files, also for {@link TagsDb} which opens the database with
+	 * the application context.
+	 *
+	 */
+	private static final class TestContext extends RenamingDelegatingContext {
+		TestContext(Context context) {
+			super(context, PREFIX);
+		}
+
+		@Override
+		public Context getApplicationContext() {
+			return this;
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		Context context = new TestContext(getContext());
+		TagsDb.INSTANCE.acquire(context);
+		// cleanDb would wipe the tags of the app if the database was already open with another context
+		assertTrue(context.getDatabasePath(DatabaseHelper.DATABASE_NAME).exists());
+		TagsDb.INSTANCE.cleanDb();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TagsDb.INSTANCE.cleanDb();
+		TagsDb.INSTANCE.release();
+		super.tearDown();
+	}
+
+	public void testSameTagTwiceOnAChunkStoresTheLastOne() {
+		TagsDb.INSTANCE.applyTagChanges(Arrays.asList(newTag("parent", "Parent", null, 1)), null);
+
+		// the first copy is a new tag, the second one moves and renames it
+		assertNotNull(TagsDb.INSTANCE.applyTagChanges(Arrays.asList(newTag("twice", "First", null, 2),
+				newTag("twice", "Second", "parent", 3)), null));
+
+		Tag indexed = TagsDb.INSTANCE.getTagByGuid("twice");
+		assertEquals("Second", indexed.getName());
+		assertEquals("parent", indexed.getParentGuid());
+		assertEquals(3, indexed.getUpdateSequenceNum());
+		assertFalse(contains(TagsDb.INSTANCE.getTopLevelTags(), "twice"));
+		Cursor children = TagsDb.INSTANCE.getChildTags("parent");
+		try {
+			assertEquals(1, children.getCount());
+			children.moveToFirst();
+			assertEquals("twice", children.getString(children.getColumnIndexOrThrow(DatabaseHelper.COLUMN_GUID)));
+			assertEquals("Second", children.getString(children.getColumnIndexOrThrow(DatabaseHelper.COLUMN_NAME)));
+			assertEquals(3, children.getInt(children.getColumnIndexOrThrow(DatabaseHelper.COLUMN_UPDATE_SEQ_NUM)));
+			assertEquals("/parent/twice/", children.getString(children.getColumnIndexOrThrow(DatabaseHelper.COLUMN_PATH)));
+		} finally {
+			children.close();
+		}
+	}
+
+	public void testSkippedTagKeepsItsVersionUntilFetchedAgain() {
+		TagsDb.INSTANCE.applyTagChanges(Arrays.asList(newTag("edited", "Edited", null, 1)), null);
+		long id = TagsDb.INSTANCE.updateLocalTag("edited", "Renamed", false, null, null);
+		// renamed elsewhere while our rename waits on the outbox
+		TagsDb.INSTANCE.applyTagChanges(Arrays.asList(newTag("edited", "Changed elsewhere", null, 2)), null);
+		assertTrue(TagsDb.INSTANCE.isSkippedBySync("edited"));
+
+		assertTrue(TagsDb.INSTANCE.confirmUpdate(id, "edited", 3));
+
+		assertEquals(1, TagsDb.INSTANCE.getTagByGuid("edited").getUpdateSequenceNum());
+		TagsDb.INSTANCE.applyTagChanges(Arrays.asList(newTag("edited", "Renamed", null, 3)), null);
+		assertFalse(TagsDb.INSTANCE.isSkippedBySync("edited"));
+		assertEquals(3, TagsDb.INSTANCE.getTagByGuid("edited").getUpdateSequenceNum());
+	}
+
+	private static Tag newTag(String guid, String name, String parentGuid, int updateSequenceNum) {
+		Tag tag = new Tag();
+		tag.setGuid(guid);
+		tag.setName(name);
+		tag.setParentGuid(parentGuid);
+		tag.setUpdateSequenceNum(updateSequenceNum);
+		return tag;
+	}
+
+	private static boolean contains(Cursor cursor, String guid) {
+		try {
+			int column = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_GUID);
+			while (cursor.moveToNext()) {
+				if (guid.equals(cursor.getString(column)))
+					return true;
+			}
+			return false;
+		} finally {
+			cursor.close();
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package com.evernote.android.sample.tageditor.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.evernote.edam.notestore.NoteStore.Client;
+import com.evernote.thrift.protocol.TBinaryProtocol;
+import com.evernote.thrift.transport.THttpClient;
+import com.evernote.thrift.transport.TTransportException;
+
+/**
+ * Reuse and eviction of the NoteStore clients, against a {@link StandInNoteStore}
+ * <p> {@link #testRoundTripsWithAndWithoutReuse()} also measures what reuse saves, the
+ * numbers are on the log under the "NoteStoreClientHolderTest" tag.</p>
+ *
+ */
+public class NoteStoreClientHolderTest extends AndroidTestCase {
+
+	private static final String TAG = "NoteStoreClientHolderTest";
+	private static final String AUTH_TOKEN = "S=s1:U=1:stand-in";
+	// What a new connection to the service costs us, roughly a TLS handshake on a mobile network
+	private static final long CONNECT_DELAY_MS = 150;
+	private static final int ROUND_TRIPS = 20;
+
+	/**
+	 * Builds clients for the stand-in server, counting them.
+	 *
+	 */
+	private static final class StandInFactory implements NoteStoreClientHolder.ClientFactory {
+		final String url;
+		final AtomicInteger created = new AtomicInteger();
+		volatile String authToken = AUTH_TOKEN;
+
+		StandInFactory(String url) {
+			this.url = url;
+		}
+
+		@Override
+		public String getAuthToken() {
+			return authToken;
+		}
+
+		@Override
+		public Client createNoteStore() throws TTransportException {
+			created.incrementAndGet();
+			return new Client(new TBinaryProtocol(new THttpClient(url)));
+		}
+	}
+
+	private StandInNoteStore server;
+	private StandInFactory factory;
+	private NoteStoreClientHolder holder;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new StandInNoteStore(CONNECT_DELAY_MS);
+		factory = new StandInFactory(server.getUrl());
+		holder = new NoteStoreClientHolder(factory);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		holder.reset();
+		server.close();
+		super.tearDown();
+	}
+
+	public void testReusesTheClientAcrossOperations() throws Exception {
+		for (int i = 0; i < ROUND_TRIPS; i++) {
+			Client client = holder.acquire();
+			assertEquals(StandInNoteStore.UPDATE_COUNT, client.getSyncState(AUTH_TOKEN).getUpdateCount());
+			assertFalse(holder.release(client, false));
+		}
+
+		assertEquals(1, factory.created.get());
+		assertEquals(ROUND_TRIPS, server.getRequestCount());
+	}
+
+	public void testTransportFailureOfReusedClientAsksForRetry() throws Exception {
+		Client first = holder.acquire();
+		holder.release(first, false);
+		Client reused = holder.acquire();
+		assertSame(first, reused);
+
+		assertTrue(holder.release(reused, true));
+
+		// the next operation gets a new client
+		Client retried = holder.acquire();
+		assertNotSame(first, retried);
+		assertEquals(2, factory.created.get());
+		holder.release(retried, false);
+	}
+
+	public void testTransportFailureOfNewClientIsNotRetried() throws Exception {
+		Client client = holder.acquire();
+
+		assertFalse(holder.release(client, true));
+	}
+
+	public void testNewLoginDropsTheIdleClients() throws Exception {
+		Client first = holder.acquire();
+		holder.release(first, false);
+
+		factory.authToken = "S=s1:U=2:stand-in";
+		Client second = holder.acquire();
+
+		assertNotSame(first, second);
+		assertEquals(2, factory.created.get());
+		holder.release(second, false);
+	}
+
+	public void testResetDropsTheBorrowedClientsOnRelease() throws Exception {
+		Client first = holder.acquire();
+		holder.reset();
+		holder.release(first, false);
+
+		Client second = holder.acquire();
+
+		assertNotSame(first, second);
+		holder.release(second, false);
+	}
+
+	/**
+	 * The same round trips with a client kept by the holder, and with a new client for each
+	 * one (which is what every operation did before the holder).
+	 *
+	 */
+	public void testRoundTripsWithAndWithoutReuse() throws Exception {
+		// without reuse first, so none of its calls can land on a pooled connection
+		long start = SystemClock.elapsedRealtime();
+		for (int i = 0; i < ROUND_TRIPS; i++) {
+			// THttpClient shares the platform's connection pool, while the transport of the
+			// Evernote session has its own HTTP client. We ask for the connection to be closed,
+			// so each new client opens its own connection like the session's would
+			THttpClient transport = new THttpClient(server.getUrl());
+			transport.setCustomHeader("Connection", "close");
+			Client client = new Client(new TBinaryProtocol(transport));
+			client.getSyncState(AUTH_TOKEN);
+			transport.close();
+		}
+		long fresh = SystemClock.elapsedRealtime() - start;
+		int freshConnections = server.getConnectionCount();
+
+		start = SystemClock.elapsedRealtime();
+		for (int i = 0; i < ROUND_TRIPS; i++) {
+			Client client = holder.acquire();
+			client.getSyncState(AUTH_TOKEN);
+			holder.release(client, false);
+		}
+		long reused = SystemClock.elapsedRealtime() - start;
+		int reusedConnections = server.getConnectionCount() - freshConnections;
+
+		Log.i(TAG, ROUND_TRIPS + " getSyncState calls: " + reused + "ms on " + reusedConnections
+				+ " connection(s) with a reused client, " + fresh + "ms on " + freshConnections
+				+ " connection(s) with a new client per call");
+		assertEquals(2 * ROUND_TRIPS, server.getRequestCount());
+		assertEquals(1, reusedConnections);
+		assertEquals(ROUND_TRIPS, freshConnections);
+	}
+}
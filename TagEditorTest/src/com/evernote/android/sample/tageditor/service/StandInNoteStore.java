@@ -0,0 +1,245 @@
+package com.evernote.android.sample.tageditor.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * A local stand-in for the Evernote Note Store, serving Thrift over HTTP on the loopback interface
+ * <p> It only answers getSyncState, which is enough to measure what a round trip costs with
+ * a new client and with a reused one. Every new connection waits {@code connectDelayMs}
+ * before its first reply, standing in for the TCP and TLS handshakes with the real service.
+ * Connections are kept alive until the client closes them (or asks for it with a 
+ * "Connection: close" header), like the service does.</p>
+ *
+ */
+class StandInNoteStore {
+
+	private static final String TAG = "StandInNoteStore";
+
+	// Thrift binary protocol, strict version 1
+	private static final int VERSION_1 = 0x80010000;
+	private static final int MESSAGE_REPLY = 2;
+	private static final byte TYPE_STOP = 0;
+	private static final byte TYPE_I32 = 8;
+	private static final byte TYPE_I64 = 10;
+	private static final byte TYPE_STRUCT = 12;
+	// The updateCount returned by getSyncState
+	static final int UPDATE_COUNT = 1;
+
+	/**
+	 * The parts of an HTTP request we care about.
+	 *
+	 */
+	private static final class Request {
+		byte[] body;
+		boolean close;
+	}
+
+	private final ServerSocket serverSocket;
+	private final long connectDelayMs;
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicInteger requests = new AtomicInteger();
+
+	/**
+	 * Start listening on a free port.
+	 * @param	connectDelayMs	the time every new connection waits before it's served.
+	 *
+	 */
+	StandInNoteStore(long connectDelayMs) throws IOException {
+		this.connectDelayMs = connectDelayMs;
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, TAG);
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Obtain the URL to build clients with.
+	 *
+	 */
+	String getUrl() {
+		return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/shard/s1/notestore";
+	}
+
+	/**
+	 * Number of connections opened by the clients so far.
+	 *
+	 */
+	int getConnectionCount() {
+		return connections.get();
+	}
+
+	/**
+	 * Number of calls served so far.
+	 *
+	 */
+	int getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * Stop accepting connections.
+	 *
+	 */
+	void close() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			Log.w(TAG, "Couldn't close the server socket", e);
+		}
+	}
+
+	private void accept() {
+		while (!serverSocket.isClosed()) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				// closed
+				return;
+			}
+			connections.incrementAndGet();
+			Thread connection = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					serve(socket);
+				}
+			}, TAG + " connection");
+			connection.setDaemon(true);
+			connection.start();
+		}
+	}
+
+	/**
+	 * Answer the requests sent on a connection, until the client closes it.
+	 *
+	 */
+	private void serve(Socket socket) {
+		try {
+			// the replies are small, we don't want them held back waiting for an ACK
+			socket.setTcpNoDelay(true);
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			boolean handshake = true;
+			Request request;
+			while ((request = readRequest(in)) != null) {
+				if (handshake) {
+					Thread.sleep(connectDelayMs);
+					handshake = false;
+				}
+				requests.incrementAndGet();
+				byte[] reply = buildReply(request.body);
+				out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/x-thrift\r\nContent-Length: "
+						+ reply.length + (request.close ? "\r\nConnection: close" : "") 
+						+ "\r\n\r\n").getBytes("US-ASCII"));
+				out.write(reply);
+				out.flush();
+				if (request.close)
+					break;
+			}
+		} catch (Exception e) {
+			Log.w(TAG, "Connection failed", e);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing left to do with it
+			}
+		}
+	}
+
+	/**
+	 * Read an HTTP request.
+	 * @returns the {@link Request}, or null if the connection was closed.
+	 *
+	 */
+	private static Request readRequest(InputStream in) throws IOException {
+		Request request = new Request();
+		int contentLength = 0;
+		String line;
+		boolean first = true;
+		while ((line = readLine(in)) != null && line.length() > 0) {
+			first = false;
+			int colon = line.indexOf(':');
+			if (colon <= 0)
+				continue;
+			String header = line.substring(0, colon).trim().toLowerCase(Locale.US);
+			String value = line.substring(colon + 1).trim();
+			if (header.equals("content-length"))
+				contentLength = Integer.parseInt(value);
+			else if (header.equals("connection"))
+				request.close = value.equalsIgnoreCase("close");
+		}
+		if (line == null || first)
+			return null;
+		request.body = new byte[contentLength];
+		new DataInputStream(in).readFully(request.body);
+		return request;
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n')
+				return sb.toString();
+			if (c != '\r')
+				sb.append((char) c);
+		}
+		return (sb.length() > 0) ? sb.toString() : null;
+	}
+
+	/**
+	 * Build the reply to a call, whatever the method, with a SyncState as the result.
+	 *
+	 */
+	private byte[] buildReply(byte[] request) throws IOException {
+		DataInputStream call = new DataInputStream(new ByteArrayInputStream(request));
+		call.readInt();
+		byte[] name = new byte[call.readInt()];
+		call.readFully(name);
+		int seqid = call.readInt();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream reply = new DataOutputStream(bytes);
+		reply.writeInt(VERSION_1 | MESSAGE_REPLY);
+		reply.writeInt(name.length);
+		reply.write(name);
+		reply.writeInt(seqid);
+		// the result struct, with the SyncState on field 0 (success)
+		reply.writeByte(TYPE_STRUCT);
+		reply.writeShort(0);
+		reply.writeByte(TYPE_I64);
+		reply.writeShort(1);
+		reply.writeLong(System.currentTimeMillis());
+		reply.writeByte(TYPE_I64);
+		reply.writeShort(2);
+		reply.writeLong(0);
+		reply.writeByte(TYPE_I32);
+		reply.writeShort(3);
+		reply.writeInt(UPDATE_COUNT);
+		reply.writeByte(TYPE_STOP);
+		reply.writeByte(TYPE_STOP);
+		reply.flush();
+		return bytes.toByteArray();
+	}
+}